@@ -55,6 +55,11 @@ public class MainActivity extends VoiceActivity {
     private static Integer ID_PROMPT_INFO = 1;
 
     private long startListeningTime = 0; // To skip errors (see processAsrError method)
+    //Listen while the questions are spoken, so that the user can interrupt them. Disabled by default because the
+    //microphone also captures the questions, which interrupt themselves when the device speaker is loud (e.g. without
+    //headphones). To enable it, set it to true and, if needed, adjust the level of the microphone that interrupts the
+    //TTS with setBargeIn(true, rmsThreshold) in onCreate (see VoiceActivity)
+    private static final boolean BARGE_IN = false;
 
 
     @Override
@@ -66,6 +71,7 @@ public class MainActivity extends VoiceActivity {
 
         //Initialize the speech recognizer and synthesizer
         initSpeechInputOutput(this);
+        setBargeIn(BARGE_IN);
 
         //Set up the speech button
         setSpeakButton();
@@ -83,7 +89,7 @@ public class MainActivity extends VoiceActivity {
             public void onClick(View v) {
                 //Ask the user to speak
                 try {
-                    speak(getResources().getString(R.string.initial_prompt), "EN", ID_PROMPT_QUERY);
+                    speakPrompt(getResources().getString(R.string.initial_prompt), "EN", ID_PROMPT_QUERY);
                 } catch (Exception e) {
                     Log.e(LOGTAG, "TTS not accessible");
                 }
@@ -227,7 +233,7 @@ public class MainActivity extends VoiceActivity {
                 });
 
                 Log.e(LOGTAG, "Error when attempting to listen: " + errorMsg);
-                try { speak(errorMsg,"EN", ID_PROMPT_INFO); } catch (Exception e) { Log.e(LOGTAG, "TTS not accessible"); }
+                try { speakPrompt(errorMsg,"EN", ID_PROMPT_INFO); } catch (Exception e) { Log.e(LOGTAG, "TTS not accessible"); }
             }
         }
 
@@ -280,7 +286,7 @@ public class MainActivity extends VoiceActivity {
      * Invoked when the TTS has finished synthesizing.
      *
      * In this case, it starts recognizing if the message that has just been synthesized corresponds to a question (its id is ID_PROMPT_QUERY),
-     * and does nothing otherwise.
+     * and does nothing otherwise. With barge-in, the recognition has already been started when the question started.
      *
      * According to the documentation the speech recognizer must be invoked from the main thread. onTTSDone callback from TTS engine and thus
      * is not in the main thread. To solve the problem, we use Androids native function for forcing running code on the UI thread
@@ -293,7 +299,7 @@ public class MainActivity extends VoiceActivity {
 
     @Override
     public void onTTSDone(String uttId) {
-        if(uttId.equals(ID_PROMPT_QUERY.toString())) {
+        if(!BARGE_IN && uttId.equals(ID_PROMPT_QUERY.toString())) {
             runOnUiThread(new Runnable() {
                 public void run() {
                     startListening();
@@ -315,10 +321,18 @@ public class MainActivity extends VoiceActivity {
     /**
      * Invoked when the TTS starts synthesizing
      *
-     * In this case it just writes in the log.
+     * With barge-in, it starts recognizing if the message corresponds to a question, so that the user can answer
+     * without waiting for the end of the question. Otherwise it just writes in the log.
      */
     @Override
     public void onTTSStart(String uttId) {
         Log.e(LOGTAG, "TTS starts speaking");
+        if(BARGE_IN && uttId.equals(ID_PROMPT_QUERY.toString())) {
+            runOnUiThread(new Runnable() {
+                public void run() {
+                    startListening();
+                }
+            });
+        }
     }
 }
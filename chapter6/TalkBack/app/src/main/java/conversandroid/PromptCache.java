@@ -0,0 +1,210 @@
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package conversandroid;
+
+
+import android.speech.tts.TextToSpeech;
+import android.util.Log;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Cache of the audio of the prompts synthesized by the TTS, which are saved in files so that a prompt that is
+ * repeated (e.g. an initial question or an error message) is not synthesized again, even after the app is restarted.
+ *
+ * Each prompt is identified by its text and the locale, engine, voice and speech rate used to synthesize it.
+ * The audio is rendered with <code>synthesizeToFile</code> after the first time that the prompt is spoken, by a TTS
+ * instance other than the one that speaks (see <code>VoiceRuntimeService</code>), and the files are removed in least
+ * recently used order when their total size exceeds the maximum size of the cache.
+ *
+ * @author Zoraida Callejas, Michael McTear, David Griol
+ * @version 3.1, 05/16/16
+ */
+public class PromptCache {
+
+    private static final String LOGTAG = "PROMPTCACHE";
+    private static final String EXTENSION = ".wav";
+    private static final String TMP_EXTENSION = ".tmp";
+
+    /**
+     * Prefix of the ids of the utterances that render prompts, so that their events are not sent to the activities
+     */
+    public static final String UTTERANCE_PREFIX = "prompt-cache:";
+
+    private final File dir;
+    private final long maxSize;
+    private long size = 0;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true); //Sizes, in access order
+    private final Set<String> rendering = new HashSet<String>();
+    private final HashMap<String, String> params = new HashMap<String, String>();
+
+    /**
+     * Creates a cache with the files in the directory indicated, which were saved by previous instances
+     * @param dir directory where the audio files are kept
+     * @param maxSize maximum size of the audio files in bytes
+     */
+    public PromptCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+
+        File[] saved = dir.listFiles();
+        if (saved == null) {
+            if (!dir.mkdirs())
+                Log.e(LOGTAG, "The directory " + dir + " could not be created");
+            return;
+        }
+
+        //The files are loaded from the least to the most recently used
+        Arrays.sort(saved, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : saved) {
+            String name = file.getName();
+            if (name.endsWith(EXTENSION)) {
+                files.put(name.substring(0, name.length() - EXTENSION.length()), file.length());
+                size += file.length();
+            } else if (!file.delete()) //Files that were being rendered when the app was stopped
+                Log.e(LOGTAG, "The file " + file + " could not be deleted");
+        }
+        evict();
+    }
+
+    /**
+     * Generates the key of a prompt, which is also the name of its audio file
+     * @return hash of the text of the prompt and the parameters of the TTS
+     */
+    public static String key(String text, Locale locale, String engine, String voice, int rate) {
+        String id = locale + "|" + engine + "|" + voice + "|" + rate + "|" + text;
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(id.getBytes("UTF-8"));
+            StringBuilder key = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                key.append(Character.forDigit((b >> 4) & 0xF, 16));
+                key.append(Character.forDigit(b & 0xF, 16));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return audio file of the prompt, or null if it has not been rendered yet
+     */
+    public synchronized File get(String key) {
+        Long length = files.get(key);
+        if (length == null)
+            return null;
+        File file = new File(dir, key + EXTENSION);
+        if (!file.exists()) { //Removed by the system when the device is running out of space
+            files.remove(key);
+            size -= length;
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis()); //Keeps the order of use for the next instances
+        return file;
+    }
+
+    /**
+     * Queues the rendering of the audio of a prompt in the TTS, if it is not in the cache or being rendered.
+     * <code>onRendered</code> must be invoked when the TTS finishes the utterance
+     * @return true if the rendering has been queued
+     */
+    @SuppressWarnings("deprecation")
+    public synchronized boolean render(TextToSpeech tts, String text, String key) {
+        if (files.containsKey(key) || rendering.contains(key))
+            return false;
+
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, UTTERANCE_PREFIX + key);
+        if (tts.synthesizeToFile(text, params, new File(dir, key + TMP_EXTENSION).getPath()) == TextToSpeech.SUCCESS) {
+            rendering.add(key);
+            return true;
+        }
+        Log.e(LOGTAG, "The prompt '" + text + "' could not be rendered");
+        return false;
+    }
+
+    /**
+     * Adds the audio of a prompt to the cache when the TTS has rendered it
+     * @param utteranceId id of the utterance that rendered the prompt
+     * @param success false if the TTS could not render it
+     */
+    public synchronized void onRendered(String utteranceId, boolean success) {
+        String key = utteranceId.substring(UTTERANCE_PREFIX.length());
+        if (!rendering.remove(key))
+            return;
+
+        File tmp = new File(dir, key + TMP_EXTENSION);
+        File file = new File(dir, key + EXTENSION);
+        if (success && tmp.length() > 0 && tmp.renameTo(file)) {
+            files.put(key, file.length());
+            size += file.length();
+            evict();
+        } else if (tmp.exists() && !tmp.delete())
+            Log.e(LOGTAG, "The file " + tmp + " could not be deleted");
+    }
+
+    /**
+     * Forgets the prompts being rendered, when the TTS that renders them is stopped and thus they will not be finished
+     */
+    public synchronized void cancel() {
+        for (String key : rendering) {
+            File tmp = new File(dir, key + TMP_EXTENSION);
+            if (tmp.exists() && !tmp.delete())
+                Log.e(LOGTAG, "The file " + tmp + " could not be deleted");
+        }
+        rendering.clear();
+    }
+
+    /**
+     * Removes the least recently used files until the cache is not larger than its maximum size
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            File file = new File(dir, entry.getKey() + EXTENSION);
+            size -= entry.getValue();
+            if (file.exists() && !file.delete())
+                Log.e(LOGTAG, "The file " + file + " could not be deleted");
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package android.util;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+/**
+ * Replacement of the Android logger so that the classes of the conversandroid.pandora package
+ * can be run on the JVM. Debug and info messages are only shown if the "conversandroid.debug"
+ * system property is set, errors are always written to the standard error.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public final class Log {
+
+    private static final boolean DEBUG = System.getProperty("conversandroid.debug") != null;
+
+    private Log() {}
+
+    public static int v(String tag, String msg) {
+        return DEBUG ? print("V", tag, msg) : 0;
+    }
+
+    public static int d(String tag, String msg) {
+        return DEBUG ? print("D", tag, msg) : 0;
+    }
+
+    public static int i(String tag, String msg) {
+        return DEBUG ? print("I", tag, msg) : 0;
+    }
+
+    public static int w(String tag, String msg) {
+        return print("W", tag, msg);
+    }
+
+    public static int e(String tag, String msg) {
+        return print("E", tag, msg);
+    }
+
+    private static int print(String level, String tag, String msg) {
+        System.err.println(level + "/" + tag + ": " + msg);
+        return 0;
+    }
+}
@@ -0,0 +1,210 @@
+package conversandroid.aiml;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import conversandroid.standin.PandoraStandIn;
+
+
+/**
+ * Benchmark of the local AIML interpreter: time to load the AIML files, to compile and save them, to open the
+ * compiled image, and pattern matches per second with the tree built from the files and with the compiled image.
+ * Only the matcher is timed (not the processing of the templates), so it is in the same package as the interpreter.
+ *
+ * The inputs are the patterns of the files, with the wildcards replaced by a word, and the same number of
+ * inputs that do not match any pattern, all of them with an unknown that and topic. The files of the book have
+ * about a hundred categories, so synthetic categories can be added to measure larger bots. Options:
+ *   --aiml dir           directory with the AIML files ("../AIML" by default)
+ *   --synthetic n        generated categories added to the ones of the files (0 by default)
+ *   --iterations n       inputs answered in each measurement (100000 by default)
+ *   --rounds n           measurements, the first one is discarded as warm-up (5 by default)
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ *
+ */
+public class AimlBenchmark {
+
+    private static final String BOT_NAME = "TalkBot";
+    private static final Pattern PATTERN = Pattern.compile("<pattern>(.*?)</pattern>", Pattern.DOTALL);
+
+    private final File[] files;
+    private final int synthetic;
+    private final List<String> inputs = new ArrayList<String>();
+    private final List<String[]> paths = new ArrayList<String[]>();
+    private final List<int[]> wildcards = new ArrayList<int[]>();
+
+    public AimlBenchmark(File dir, int synthetic) throws IOException {
+        this.files = dir.listFiles();
+        if (files == null)
+            throw new IOException("No AIML files in " + dir);
+        this.synthetic = synthetic;
+
+        for (File file : files) {
+            if (!file.getName().endsWith(".aiml"))
+                continue;
+            Matcher m = PATTERN.matcher(read(file));
+            while (m.find()) {
+                String input = m.group(1).replaceAll("[*_#^]", "coffee").trim();
+                if (input.length() > 0 && input.indexOf('<') < 0)
+                    inputs.add(input);
+            }
+        }
+        for (int i = 0; i < synthetic; i += Math.max(1, synthetic / 100))
+            inputs.add("question number " + i + " about coffee");
+        int matching = inputs.size();
+        for (int i = 0; i < matching; i++)
+            inputs.add("xyzzy plugh " + i);
+
+        String[] unknown = {"UNKNOWN"};
+        for (String input : inputs)
+            paths.add(Graphmaster.path(AimlBot.words(input), unknown, unknown));
+    }
+
+    /**
+     * Creates a bot with the categories of the files and the synthetic ones
+     */
+    public AimlBot load() throws IOException {
+        AimlBot bot = new AimlBot(BOT_NAME);
+        for (File file : files) {
+            if (file.getName().endsWith(".aiml")) {
+                InputStream in = new FileInputStream(file);
+                try {
+                    bot.load(in);
+                } finally {
+                    in.close();
+                }
+            }
+        }
+        if (synthetic > 0) {
+            StringBuilder aiml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><aiml version=\"1.0\">");
+            for (int i = 0; i < synthetic; i++)
+                aiml.append("<category><pattern>QUESTION NUMBER ").append(i).append(" ABOUT *</pattern><template>Answer ")
+                        .append(i).append(" about <star/>.</template></category>");
+            aiml.append("</aiml>");
+            bot.load(new ByteArrayInputStream(aiml.toString().getBytes("UTF-8")));
+        }
+        return bot;
+    }
+
+    /**
+     * @return patterns of the categories matched by the inputs, null for those that do not match
+     */
+    private String[] match(PatternMatcher matcher) {
+        String[] patterns = new String[paths.size()];
+        for (int i = 0; i < patterns.length; i++) {
+            wildcards.clear();
+            AimlCategory category = matcher.match(paths.get(i), wildcards);
+            patterns[i] = category != null ? category.pattern : null;
+        }
+        return patterns;
+    }
+
+    /**
+     * @return matches per second
+     */
+    private double measure(PatternMatcher matcher, int iterations) {
+        int matched = 0; //Used so that the matching is not optimized away
+        int n = paths.size();
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            wildcards.clear();
+            if (matcher.match(paths.get(i % n), wildcards) != null)
+                matched++;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (matched == 0)
+            throw new IllegalStateException("No input matched");
+        return iterations / seconds;
+    }
+
+    private static String read(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int pos = 0;
+            int n;
+            while (pos < bytes.length && (n = in.read(bytes, pos, bytes.length - pos)) > 0)
+                pos += n;
+        } finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    private static double millisSince(long start) {
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = PandoraStandIn.parseOptions(args);
+        AimlBenchmark benchmark = new AimlBenchmark(new File(PandoraStandIn.option(options, "aiml", "../AIML")),
+                Integer.parseInt(PandoraStandIn.option(options, "synthetic", "0")));
+        int iterations = Integer.parseInt(PandoraStandIn.option(options, "iterations", "1000000"));
+        int rounds = Integer.parseInt(PandoraStandIn.option(options, "rounds", "5"));
+
+        long start = System.nanoTime();
+        AimlBot tree = benchmark.load();
+        System.out.println(String.format("Loaded %d categories in %.1f ms, %d inputs", tree.size(), millisSince(start), benchmark.inputs.size()));
+
+        File image = File.createTempFile("aiml", ".aimlc");
+        image.deleteOnExit();
+        AimlBot compiled = benchmark.load();
+        start = System.nanoTime();
+        compiled.save(image, 1);
+        System.out.println(String.format("Compiled and saved %d bytes in %.1f ms", image.length(), millisSince(start)));
+        start = System.nanoTime();
+        AimlBot opened = AimlBot.open(BOT_NAME, image, 1);
+        if (opened == null)
+            throw new IllegalStateException("The compiled image could not be opened");
+        System.out.println(String.format("Opened the compiled image in %.1f ms", millisSince(start)));
+
+        //Both matchers must find the same categories
+        PatternMatcher treeMatcher = tree.getMatcher();
+        PatternMatcher compiledMatcher = opened.getMatcher();
+        String[] treePatterns = benchmark.match(treeMatcher);
+        String[] compiledPatterns = benchmark.match(compiledMatcher);
+        for (int i = 0; i < treePatterns.length; i++) {
+            if (treePatterns[i] == null ? compiledPatterns[i] != null : !treePatterns[i].equals(compiledPatterns[i]))
+                throw new IllegalStateException("Different match for '" + benchmark.inputs.get(i) + "'");
+        }
+
+        for (int round = 0; round < rounds; round++) {
+            double treeRate = benchmark.measure(treeMatcher, iterations);
+            double compiledRate = benchmark.measure(compiledMatcher, iterations);
+            System.out.println(String.format("%s tree %.0f matches/s, compiled %.0f matches/s",
+                    round == 0 ? "Warm-up:" : "Round " + round + ":", treeRate, compiledRate));
+        }
+        if (!image.delete())
+            System.out.println("The file " + image + " could not be deleted");
+    }
+}
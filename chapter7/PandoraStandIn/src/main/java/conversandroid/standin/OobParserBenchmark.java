@@ -0,0 +1,163 @@
+package conversandroid.standin;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.StringReader;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathFactory;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import conversandroid.pandora.MarkupStripper;
+import conversandroid.pandora.PandoraOobParser;
+
+
+/**
+ * Benchmark of the processing of the &lt;oob&gt; content of the responses: the single-pass
+ * <code>PandoraOobParser</code> followed by <code>MarkupStripper</code> (as <code>PandoraResultProcessor</code>
+ * does), compared with extracting the content with a regular expression and parsing it with DOM and XPath.
+ *
+ * Before measuring, it checks that the location is found both when &lt;myloc&gt; is inside &lt;map&gt; and
+ * when it follows it (e.g. "&lt;map/&gt;&lt;myloc/&gt;" in oob.aiml). Options:
+ *   --iterations n       responses processed in each measurement (100000 by default)
+ *   --rounds n           measurements, the first one is discarded as warm-up (5 by default)
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ *
+ */
+public class OobParserBenchmark {
+
+    private static final String[] RESPONSES = {
+            "Hello, I am TalkBot. How can I help you?",
+            "Let's try looking on the map.  <oob><map><myloc>coffee</myloc></map></oob>",
+            "I'll show you on the map.  <oob><map/><myloc/></oob>",
+            "I'll show you on the map. <oob><map></map><myloc></myloc></oob>",
+            "Here's a map of Granada <oob><map>Granada</map></oob>",
+            "Searching &quot;Conversational Interface&quot; &amp; more. <oob><search>Conversational Interface</search></oob>",
+            "Opening <b>Gmail</b>. <oob><launch>Gmail</launch></oob>",
+            "Checking your battery. <oob><battery/></oob>",
+            "Getting directions. <oob><directions><from>Granada</from><to>Ulster</to></directions></oob>"
+    };
+
+    private static final Pattern OOB = Pattern.compile("<oob>(.*)</oob>");
+
+    private final PandoraOobParser parser = new PandoraOobParser();
+    private final char[] plainText = new char[256];
+    private final DocumentBuilder builder;
+    private final XPath xpath = XPathFactory.newInstance().newXPath();
+
+    public OobParserBenchmark() throws Exception {
+        builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+    }
+
+    /**
+     * Checks that the location is found in the two forms of &lt;map&gt; with &lt;myloc&gt;
+     */
+    public void check() {
+        checkLocation("Let's try looking on the map. <oob><map><myloc>coffee</myloc></map></oob>", "coffee");
+        checkLocation("I'll show you on the map. <oob><map/><myloc/></oob>", "");
+        checkLocation("I'll show you on the map. <oob><map></map><myloc></myloc></oob>", "");
+        checkLocation("I'll show you on the map. <oob><myloc/><map>Granada</map></oob>", "");
+    }
+
+    private void checkLocation(String response, String location) {
+        if (!parser.parse(response))
+            throw new IllegalStateException("No oob content in: " + response);
+        parser.nest("map", "myloc");
+        if (parser.getElements().size() != 1 || !parser.getElements().get(0).getName().equals("map"))
+            throw new IllegalStateException("Expected a single map in: " + response + ", found " + parser.getElements());
+        String found = parser.getElements().get(0).findText("myloc");
+        if (!location.equals(found))
+            throw new IllegalStateException("Expected location '" + location + "' in: " + response + ", found " + found);
+    }
+
+    /**
+     * Parses a response as <code>PandoraResultProcessor</code> does
+     * @return number of elements and characters to speak
+     */
+    public int parse(String response) {
+        int n = 0;
+        if (parser.parse(response)) {
+            parser.nest("map", "myloc");
+            n = parser.getElements().size();
+        }
+        return n + MarkupStripper.strip(parser.getTextToSpeak(), plainText);
+    }
+
+    /**
+     * Parses a response with a regular expression and DOM
+     * @return number of elements and characters to speak
+     */
+    public int parseDom(String response) throws Exception {
+        Matcher matcher = OOB.matcher(response);
+        if (!matcher.find())
+            return response.length();
+        String oobContent = matcher.group(1);
+        String textToSpeak = response.replace("<oob>" + oobContent + "</oob>", "");
+        Document doc = builder.parse(new InputSource(new StringReader("<oob>" + oobContent + "</oob>")));
+        doc.getDocumentElement().normalize();
+        String map = (String) xpath.evaluate("//map", doc, XPathConstants.STRING);
+        return doc.getDocumentElement().getChildNodes().getLength() + map.length() + textToSpeak.length();
+    }
+
+    /**
+     * @return microseconds per response
+     */
+    private double measure(boolean dom, int iterations) throws Exception {
+        long total = 0; //Used so that the parsing is not optimized away
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            String response = RESPONSES[i % RESPONSES.length];
+            total += dom ? parseDom(response) : parse(response);
+        }
+        double micros = (System.nanoTime() - start) / 1000.0 / iterations;
+        if (total == 0)
+            throw new IllegalStateException("Nothing parsed");
+        return micros;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = PandoraStandIn.parseOptions(args);
+        int iterations = Integer.parseInt(PandoraStandIn.option(options, "iterations", "100000"));
+        int rounds = Integer.parseInt(PandoraStandIn.option(options, "rounds", "5"));
+
+        OobParserBenchmark benchmark = new OobParserBenchmark();
+        benchmark.check();
+        System.out.println("Location found with <myloc> inside and next to <map>");
+
+        for (int round = 0; round < rounds; round++) {
+            double parser = benchmark.measure(false, iterations);
+            double dom = benchmark.measure(true, iterations);
+            System.out.println(String.format("%s single pass %.2f us/response, DOM %.2f us/response",
+                    round == 0 ? "Warm-up:" : "Round " + round + ":", parser, dom));
+        }
+    }
+}
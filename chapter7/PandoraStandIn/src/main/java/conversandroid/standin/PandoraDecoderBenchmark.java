@@ -0,0 +1,149 @@
+package conversandroid.standin;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import conversandroid.pandora.PandoraException;
+import conversandroid.pandora.PandoraResponseDecoder;
+
+
+/**
+ * Benchmark of <code>PandoraResponseDecoder</code>, which decodes the body of the responses of the
+ * service while it is read. It is compared with:
+ *  - the previous path of <code>PandoraConnection</code>: the body read in a string (<code>content.asString()</code>),
+ *    parsed with <code>JSONObject</code>, the responses concatenated with <code>+=</code>, and the result lower-cased
+ *    to look for "match failed"
+ *  - the decoder reading the body from a string, so that the difference with the streaming decoder is the cost
+ *    of the copy that streaming avoids
+ * Options:
+ *   --sentences n        sentences of the answer, each one an element of "responses" (200 by default)
+ *   --iterations n       responses decoded in each measurement (20000 by default)
+ *   --rounds n           measurements, the first one is discarded as warm-up (5 by default)
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraDecoderBenchmark {
+
+    private final byte[] body;
+    private final PandoraResponseDecoder decoder = new PandoraResponseDecoder();
+    private final char[] buffer = new char[4096];
+
+    public PandoraDecoderBenchmark(int sentences) throws IOException {
+        StringBuilder json = new StringBuilder("{\"status\":\"ok\",\"responses\":[");
+        for (int i = 0; i < sentences; i++) {
+            if (i > 0)
+                json.append(',');
+            PandoraStandIn.appendJsonString(json, " This is the sentence number " + i + " of the \"answer\", caf\u00e9 & <b>tags</b>. ");
+        }
+        json.append("],\"sessionid\":\"1\"}");
+        body = json.toString().getBytes("UTF-8");
+    }
+
+    /**
+     * @return size of the body of the response in bytes
+     */
+    public int getSize() {
+        return body.length;
+    }
+
+    /**
+     * Decodes the body while it is read
+     */
+    public String decodeStreaming() throws IOException, PandoraException {
+        return decoder.decode(new InputStreamReader(new ByteArrayInputStream(body), "UTF-8"));
+    }
+
+    /**
+     * Reads the whole body in a string and then decodes it
+     */
+    public String decodeBuffered() throws IOException, PandoraException {
+        Reader reader = new InputStreamReader(new ByteArrayInputStream(body), "UTF-8");
+        StringBuilder content = new StringBuilder();
+        int n;
+        while ((n = reader.read(buffer)) >= 0)
+            content.append(buffer, 0, n);
+        return decoder.decode(new StringReader(content.toString()));
+    }
+
+    /**
+     * Decodes the body as <code>PandoraConnection</code> did before the streaming decoder
+     */
+    public String decodeJson() throws IOException, JSONException {
+        String response = new String(body, "UTF-8"); //As content.asString()
+        JSONObject jObj = new JSONObject(response);
+        JSONArray jArray = jObj.getJSONArray("responses");
+        String responses = "";
+        for (int i = 0; i < jArray.length(); i++) {
+            responses += jArray.getString(i).trim();
+        }
+        if (responses.toLowerCase().contains("match failed"))
+            return null;
+        return responses;
+    }
+
+    /**
+     * @param mode 0 for the streaming decoder, 1 for the decoder on a string, 2 for JSONObject
+     * @return microseconds per response
+     */
+    private double measure(int mode, int iterations) throws IOException, PandoraException, JSONException {
+        long length = 0; //Used so that the decoding is not optimized away
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            length += (mode == 0 ? decodeStreaming() : (mode == 1 ? decodeBuffered() : decodeJson())).length();
+        double micros = (System.nanoTime() - start) / 1000.0 / iterations;
+        if (length == 0)
+            throw new IllegalStateException("Empty responses");
+        return micros;
+    }
+
+    public static void main(String[] args) throws IOException, PandoraException, JSONException {
+        Map<String, String> options = PandoraStandIn.parseOptions(args);
+        PandoraDecoderBenchmark benchmark = new PandoraDecoderBenchmark(Integer.parseInt(PandoraStandIn.option(options, "sentences", "200")));
+        int iterations = Integer.parseInt(PandoraStandIn.option(options, "iterations", "20000"));
+        int rounds = Integer.parseInt(PandoraStandIn.option(options, "rounds", "5"));
+
+        String decoded = benchmark.decodeStreaming();
+        if (!decoded.equals(benchmark.decodeBuffered()) || !decoded.equals(benchmark.decodeJson()))
+            throw new IllegalStateException("The decodings are different");
+        System.out.println("Response of " + benchmark.getSize() + " bytes");
+
+        for (int round = 0; round < rounds; round++) {
+            double streaming = benchmark.measure(0, iterations);
+            double buffered = benchmark.measure(1, iterations);
+            double json = benchmark.measure(2, iterations);
+            System.out.println(String.format("%s streaming %.1f us/response, decoder on a string %.1f us/response, JSONObject %.1f us/response",
+                    round == 0 ? "Warm-up:" : "Round " + round + ":", streaming, buffered, json));
+        }
+    }
+}
@@ -0,0 +1,208 @@
+package conversandroid.standin;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import conversandroid.metrics.Histogram;
+import conversandroid.metrics.MetricsRegistry;
+import conversandroid.pandora.PandoraConnection;
+import conversandroid.pandora.PandoraErrorCode;
+import conversandroid.pandora.PandoraException;
+
+
+/**
+ * Multi-threaded load generator for <code>PandoraConnection</code>. Several threads send queries
+ * through the same connection (as the front-ends of an app would) during a certain time, and
+ * then it reports the requests per second and the percentiles of the turn latency, and the
+ * percentiles of each phase of the requests (DNS, connection, TLS, time to first byte, read and parse).
+ *
+ * If no host is indicated, it starts an embedded <code>PandoraStandIn</code>, which accepts the same
+ * latency, error and throughput options. Options:
+ *   --host url           Pandorabots server, e.g. http://localhost:8080
+ *   --app-id id, --user-key key, --bot name     credentials used in the requests
+ *   --threads n          concurrent clients (8 by default)
+ *   --duration s         seconds measured (10 by default)
+ *   --warmup s           seconds run before measuring (2 by default)
+ *   --input text         query sent ("hello" by default)
+ *   --distinct           appends a number to each query, so that they are not coalesced
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraLoadGenerator {
+
+    private final PandoraConnection connection;
+    private final int threads;
+    private final String input;
+    private final boolean distinct;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    public PandoraLoadGenerator(PandoraConnection connection, int threads, String input, boolean distinct) {
+        this.connection = connection;
+        this.threads = threads;
+        this.input = input;
+        this.distinct = distinct;
+    }
+
+    /**
+     * Result of a run of the load generator
+     */
+    public static class Report {
+        public long requests;
+        public long errors;
+        public double seconds;
+        public long[] latencies;  //Latencies of the successful requests in microseconds, sorted
+        public final Map<PandoraErrorCode, Long> errorCodes = new EnumMap<PandoraErrorCode, Long>(PandoraErrorCode.class);
+
+        public double requestsPerSecond() {
+            return requests / seconds;
+        }
+
+        /**
+         * @param p percentile, between 0 and 100
+         * @return latency in milliseconds
+         */
+        public double percentile(double p) {
+            if (latencies.length == 0)
+                return 0;
+            int index = (int) Math.ceil(p / 100 * latencies.length) - 1;
+            return latencies[Math.max(0, index)] / 1000.0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d errors %s) in %.1f s: %.1f requests/s, latency p50=%.1f ms p95=%.1f ms p99=%.1f ms max=%.1f ms",
+                    requests, errors, errorCodes, seconds, requestsPerSecond(),
+                    percentile(50), percentile(95), percentile(99), percentile(100));
+        }
+    }
+
+    /**
+     * Sends queries from all the threads during the time indicated
+     * @param millis duration in milliseconds
+     * @return requests, errors and latencies observed
+     */
+    public Report run(long millis) throws InterruptedException {
+        final long end = System.currentTimeMillis() + millis;
+        final long[][] latencies = new long[threads][];
+        final int[] counts = new int[threads];
+        final Report report = new Report();
+        final CountDownLatch done = new CountDownLatch(threads);
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            final int id = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long[] samples = new long[1024];
+                    int n = 0;
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            String query = distinct ? input + " " + counter.incrementAndGet() : input;
+                            long t0 = System.nanoTime();
+                            try {
+                                connection.talk(query);
+                                if (n == samples.length)
+                                    samples = Arrays.copyOf(samples, n * 2);
+                                samples[n++] = (System.nanoTime() - t0) / 1000;
+                            } catch (PandoraException e) {
+                                addError(report, e.getErrorCode());
+                            }
+                        }
+                    } finally {
+                        latencies[id] = samples;
+                        counts[id] = n;
+                        done.countDown();
+                    }
+                }
+            }, "load-" + t).start();
+        }
+        done.await();
+        report.seconds = (System.nanoTime() - start) / 1e9;
+
+        int total = 0;
+        for (int count : counts)
+            total += count;
+        report.latencies = new long[total];
+        int pos = 0;
+        for (int t = 0; t < threads; t++) {
+            System.arraycopy(latencies[t], 0, report.latencies, pos, counts[t]);
+            pos += counts[t];
+        }
+        Arrays.sort(report.latencies);
+        report.requests = total + report.errors;
+        return report;
+    }
+
+    private static synchronized void addError(Report report, PandoraErrorCode code) {
+        report.errors++;
+        Long count = report.errorCodes.get(code);
+        report.errorCodes.put(code, count == null ? 1 : count + 1);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Map<String, String> options = PandoraStandIn.parseOptions(args);
+
+        PandoraStandIn standIn = null;
+        String host = options.get("host");
+        if (host == null) {
+            standIn = new PandoraStandIn(0);
+            PandoraStandIn.configure(standIn, options);
+            standIn.start();
+            host = "http://localhost:" + standIn.getPort();
+        }
+
+        PandoraConnection connection = new PandoraConnection(host,
+                PandoraStandIn.option(options, "app-id", "app"),
+                PandoraStandIn.option(options, "user-key", "key"),
+                PandoraStandIn.option(options, "bot", "bot"));
+        MetricsRegistry metrics = new MetricsRegistry();
+        connection.setMetrics(metrics);
+        PandoraLoadGenerator generator = new PandoraLoadGenerator(connection,
+                Integer.parseInt(PandoraStandIn.option(options, "threads", "8")),
+                PandoraStandIn.option(options, "input", "hello"),
+                options.containsKey("distinct"));
+
+        long warmup = Long.parseLong(PandoraStandIn.option(options, "warmup", "2"));
+        if (warmup > 0)
+            System.out.println("Warm-up: " + generator.run(warmup * 1000));
+        metrics.reset();
+        System.out.println("Result:  " + generator.run(Long.parseLong(PandoraStandIn.option(options, "duration", "10")) * 1000));
+        for (Histogram histogram : metrics.getHistograms())
+            System.out.println("  " + histogram);
+
+        if (standIn != null) {
+            System.out.println("Stand-in: " + standIn.getRequests() + " requests, " + standIn.getErrors() + " errors injected, "
+                    + standIn.getThrottled() + " throttled");
+            standIn.stop();
+        }
+    }
+}
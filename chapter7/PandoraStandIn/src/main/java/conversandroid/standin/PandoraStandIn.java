@@ -0,0 +1,396 @@
+package conversandroid.standin;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Local stand-in of the Pandorabots AI as a Service, which implements the
+ * <code>/talk/{appId}/{botName}?input=...&user_key=...</code> contract used by <code>PandoraConnection</code>.
+ * It answers with the same JSON shape as the real service: {"status":"ok","responses":[...],"sessionid":...}
+ *
+ * Answers are configured per input. Inputs without an answer are echoed, except those
+ * mapped to <code>MATCH_FAILED</code>, for which the bot indicates "Match failed". The default
+ * answers include the <oob> payloads understood by <code>PandoraResultProcessor</code>.
+ *
+ * To reproduce the conditions of the real service, it is possible to inject latency (a fixed
+ * delay plus a random jitter), errors (a fraction of requests answered with HTTP 500) and
+ * a limit of requests per second (requests above it are answered with HTTP 429).
+ *
+ * It can be run from the command line (see <code>main</code>), e.g. for the TalkBot app running in
+ * the emulator, whose host would be "http://10.0.2.2:8080"; or embedded in other programs such as
+ * <code>PandoraLoadGenerator</code>.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraStandIn {
+
+    /**
+     * Answer that makes the bot indicate that no category matched the input
+     */
+    public static final String MATCH_FAILED = "Match failed.";
+
+    static {
+        //Otherwise Nagle's algorithm adds ~40ms to the responses sent on keep-alive connections
+        if (System.getProperty("sun.net.httpserver.nodelay") == null)
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final Map<String, String[]> answers = new ConcurrentHashMap<String, String[]>();
+    private final Random random = new Random();
+
+    private volatile String appId = null;
+    private volatile String userKey = null;
+    private volatile long latency = 0;
+    private volatile long jitter = 0;
+    private volatile double errorRate = 0;
+    private volatile int maxRequestsPerSecond = 0;
+
+    private long currentSecond = 0;
+    private int requestsInSecond = 0;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+
+    /**
+     * Creates the stand-in with the default answers
+     * @param port port in which it listens, 0 to use any free port
+     * @throws IOException when the port cannot be used
+     */
+    public PandoraStandIn(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/talk/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    drain(exchange.getRequestBody()); //Otherwise the server does not keep the connection alive
+                    talk(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(executor);
+
+        setAnswer("hello", "Hi there!");
+        setAnswer("what can you do", "I can chat with you.", "I can also show maps, search the web, launch apps and check your battery.");
+        setAnswer("battery level", "<oob><battery></battery></oob>");
+        setAnswer("where am I", "Here is where you are <oob><map><myloc>you are here</myloc></map></oob>");
+        setAnswer("show me a map of Granada", "Here is a map of Granada <oob><map>Granada</map></oob>");
+        setAnswer("search for pizza", "Searching for pizza <oob><search>pizza</search></oob>");
+        setAnswer("open the calculator", "Opening the calculator <oob><launch>calculator</launch></oob>");
+        setAnswer("how do I get to the station", "Here are the directions <oob><directions><to>station</to></directions></oob>");
+        setAnswer("asdfgh", MATCH_FAILED);
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    /**
+     * @return port in which the stand-in listens
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Sets the answer to an input. Each of the responses is an element of the "responses" array
+     */
+    public void setAnswer(String input, String... responses) {
+        answers.put(normalize(input), responses);
+    }
+
+    /**
+     * Only accepts requests with these credentials (HTTP 401 otherwise). If they are null, any credentials are valid
+     */
+    public void setCredentials(String appId, String userKey) {
+        this.appId = appId;
+        this.userKey = userKey;
+    }
+
+    /**
+     * Sets the time that each request takes: latency + a random value between 0 and jitter milliseconds
+     */
+    public void setLatency(long latency, long jitter) {
+        this.latency = latency;
+        this.jitter = jitter;
+    }
+
+    /**
+     * Sets the fraction of requests (between 0 and 1) that fail with HTTP 500
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the maximum requests per second, the rest fail with HTTP 429. 0 means no limit
+     */
+    public void setMaxRequestsPerSecond(int maxRequestsPerSecond) {
+        this.maxRequestsPerSecond = maxRequestsPerSecond;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getErrors() {
+        return errors.get();
+    }
+
+    public long getThrottled() {
+        return throttled.get();
+    }
+
+    /**
+     * Reads answers from a file with a line "input = response" per input. Several responses may be
+     * separated with "|". Empty lines and lines starting with # are ignored
+     */
+    public void loadAnswers(String fileName) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(fileName), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                int separator = line.indexOf('=');
+                if (line.length() == 0 || line.startsWith("#") || separator < 0)
+                    continue;
+                setAnswer(line.substring(0, separator), line.substring(separator + 1).trim().split("\\s*\\|\\s*"));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Answers a request to /talk/{appId}/{botName}
+     */
+    private void talk(HttpExchange exchange) throws IOException {
+        requests.incrementAndGet();
+
+        String[] path = exchange.getRequestURI().getPath().split("/");
+        Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+        String input = params.get("input");
+        if (path.length != 4 || input == null) {
+            send(exchange, 400, "{\"status\":\"error\",\"message\":\"Bad request\"}");
+            return;
+        }
+        if ((appId != null && !appId.equals(path[2])) || (userKey != null && !userKey.equals(params.get("user_key")))) {
+            send(exchange, 401, "{\"status\":\"error\",\"message\":\"Unauthorized\"}");
+            return;
+        }
+        if (!acquire()) {
+            throttled.incrementAndGet();
+            send(exchange, 429, "{\"status\":\"error\",\"message\":\"Too many requests\"}");
+            return;
+        }
+
+        delay();
+
+        if (errorRate > 0 && nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            send(exchange, 500, "{\"status\":\"error\",\"message\":\"Internal error\"}");
+            return;
+        }
+
+        String[] responses = answers.get(normalize(input));
+        if (responses == null)
+            responses = new String[]{"You said " + input + "."};
+
+        StringBuilder json = new StringBuilder("{\"status\":\"ok\",\"responses\":[");
+        for (int i = 0; i < responses.length; i++) {
+            if (i > 0)
+                json.append(',');
+            appendJsonString(json, responses[i]);
+        }
+        json.append("],\"sessionid\":\"").append(Thread.currentThread().getId()).append("\"}");
+        send(exchange, 200, json.toString());
+    }
+
+    /**
+     * Checks the limit of requests per second
+     */
+    private synchronized boolean acquire() {
+        if (maxRequestsPerSecond <= 0)
+            return true;
+        long second = System.currentTimeMillis() / 1000;
+        if (second != currentSecond) {
+            currentSecond = second;
+            requestsInSecond = 0;
+        }
+        return ++requestsInSecond <= maxRequestsPerSecond;
+    }
+
+    private void delay() {
+        long time = latency + (jitter > 0 ? (long) (nextDouble() * jitter) : 0);
+        if (time > 0) {
+            try {
+                Thread.sleep(time);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized double nextDouble() {
+        return random.nextDouble();
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buffer = new byte[512];
+        while (in.read(buffer) >= 0) ;
+        in.close();
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        if ("HEAD".equals(exchange.getRequestMethod())) { //Used by PandoraConnection.warmUp, only the headers are sent
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(bytes.length)); //So that the client keeps the connection
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream out = exchange.getResponseBody();
+        out.write(bytes);
+        out.close();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws UnsupportedEncodingException {
+        Map<String, String> params = new HashMap<String, String>();
+        if (query == null)
+            return params;
+        for (String param : query.split("&")) {
+            int separator = param.indexOf('=');
+            if (separator > 0)
+                params.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+                        URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+        }
+        return params;
+    }
+
+    static void appendJsonString(StringBuilder json, String text) {
+        json.append('"');
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '"': json.append("\\\""); break;
+                case '\\': json.append("\\\\"); break;
+                case '\n': json.append("\\n"); break;
+                case '\r': json.append("\\r"); break;
+                case '\t': json.append("\\t"); break;
+                default:
+                    if (c < ' ')
+                        json.append(String.format("\\u%04x", (int) c));
+                    else
+                        json.append(c);
+            }
+        }
+        json.append('"');
+    }
+
+    private static String normalize(String input) {
+        return input.trim().replaceAll("\\s+", " ").toLowerCase(Locale.US);
+    }
+
+    /**
+     * Runs the stand-in from the command line. Options:
+     *   --port n             port (8080 by default)
+     *   --latency ms         fixed latency of each request
+     *   --jitter ms          maximum random latency added to each request
+     *   --error-rate r       fraction of requests that fail with HTTP 500
+     *   --max-rps n          maximum requests per second
+     *   --answers file       file with additional answers ("input = response" per line)
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = parseOptions(args);
+        PandoraStandIn standIn = new PandoraStandIn(Integer.parseInt(option(options, "port", "8080")));
+        configure(standIn, options);
+        standIn.start();
+        System.out.println("Pandorabots stand-in listening on port " + standIn.getPort());
+    }
+
+    /**
+     * Applies the latency, error and throughput options to the stand-in
+     */
+    static void configure(PandoraStandIn standIn, Map<String, String> options) throws IOException {
+        standIn.setLatency(Long.parseLong(option(options, "latency", "0")), Long.parseLong(option(options, "jitter", "0")));
+        standIn.setErrorRate(Double.parseDouble(option(options, "error-rate", "0")));
+        standIn.setMaxRequestsPerSecond(Integer.parseInt(option(options, "max-rps", "0")));
+        if (options.containsKey("answers"))
+            standIn.loadAnswers(options.get("answers"));
+    }
+
+    /**
+     * Parses options with the form "--name value" (or just "--name" for flags)
+     */
+    public static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<String, String>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--"))
+                throw new IllegalArgumentException("Invalid option: " + args[i]);
+            String name = args[i].substring(2);
+            if (i + 1 < args.length && !args[i + 1].startsWith("--"))
+                options.put(name, args[++i]);
+            else
+                options.put(name, "true");
+        }
+        return options;
+    }
+
+    public static String option(Map<String, String> options, String name, String defaultValue) {
+        String value = options.get(name);
+        return value != null ? value : defaultValue;
+    }
+}
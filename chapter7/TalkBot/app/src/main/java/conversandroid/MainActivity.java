@@ -22,6 +22,7 @@ package conversandroid;
  */
 
 import android.content.Context;
+import android.content.pm.PackageManager;
 import android.graphics.PorterDuff;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -34,15 +35,25 @@ import android.view.View;
 import android.widget.Button;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
+import conversandroid.aiml.AimlBot;
+import conversandroid.metrics.MetricsRegistry;
+import conversandroid.pandora.AppLabelIndex;
+import conversandroid.pandora.MarkupStripper;
 import conversandroid.pandora.PandoraConnection;
 import conversandroid.pandora.PandoraErrorCode;
 import conversandroid.pandora.PandoraException;
+import conversandroid.pandora.PandoraListener;
+import conversandroid.pandora.PandoraResilience;
+import conversandroid.pandora.PandoraResponseCache;
 import conversandroid.pandora.PandoraResultProcessor;
+import conversandroid.pandora.PandoraSpeculator;
 import conversandroid.talkbot.R;
 import conversandroid.voiceinterface.VoiceActivity;
 
@@ -67,6 +78,11 @@ public class MainActivity extends VoiceActivity {
     private static Integer ID_PROMPT_QUERY = 0;	//Id chosen to identify the prompts that involve posing questions to the user
     private static Integer ID_PROMPT_INFO = 1;	//Id chosen to identify the prompts that involve only informing the user
 	private long startListeningTime = 0; // To skip errors (see processAsrError method)
+	//The user can interrupt the bot responses by speaking. Disabled by default because the microphone also captures
+	//the responses of the bot, which interrupt themselves when the device speaker is loud (e.g. without headphones).
+	//To enable it, set it to true and, if needed, adjust the level of the microphone that interrupts the TTS with
+	//setBargeIn(true, rmsThreshold) in onCreate (see VoiceActivity)
+	private static final boolean BARGE_IN = false;
 
 	//TODO: USE YOUR OWN PARAMETERS TO MAKE IT WORK
 	private String host = "aiaas.pandorabots.com";
@@ -74,6 +90,17 @@ public class MainActivity extends VoiceActivity {
 	private String appId = "YOUR APP ID HERE";
 	private String botName = "YOUR BOT NAME HERE";
 	PandoraConnection pandoraConnection = new PandoraConnection(host, appId, userKey, botName);
+
+	private static final int CACHE_SIZE = 100; //Maximum number of bot responses cached
+	private static final long CACHE_TTL = 24 * 60 * 60 * 1000; //Cached responses expire after one day
+	private static final String LOCAL_BOT_FILE = "local_bot.aimlc"; //Compiled categories of the local bot
+	private static final boolean SPECULATIVE_QUERIES = false; //Send the partial recognition results to the bot while the user is speaking (extra requests)
+
+	private PandoraResultProcessor oobProcessor = null; //Processes the <oob> content of the responses, created the first time it is used
+	private char[] plainText = new char[256]; //Text of the responses without HTML, see removeTags
+
+	//Sends the queries, speculatively with the partial recognition results if SPECULATIVE_QUERIES is true
+	PandoraSpeculator speculator = new PandoraSpeculator(pandoraConnection);
 	
 	/**
 	 * Sets up the activity initializing the GUI, ASR and TTS
@@ -88,12 +115,81 @@ public class MainActivity extends VoiceActivity {
 		
 		//Initialize the speech recognizer and synthesizer
 		initSpeechInputOutput(this);
+		setPartialResults(SPECULATIVE_QUERIES);
+		setChunkedSpeech(true); //Start speaking long bot responses before the whole text is processed by the TTS
+		setBargeIn(BARGE_IN);
+
+		//Cache the bot responses, keeping them in a file across restarts
+		pandoraConnection.setCache(new PandoraResponseCache(CACHE_SIZE, CACHE_TTL, new File(getCacheDir(), "pandora_responses")));
+
+		//Retry the requests that could not connect and answer with a fallback message when Pandorabots is down.
+		//Hedging is not enabled, as the requests are not idempotent (the bot keeps the state of the conversation)
+		PandoraResilience resilience = new PandoraResilience();
+		resilience.setFallbackAnswer(getResources().getString(R.string.fallback_prompt));
+		pandoraConnection.setResilience(resilience);
+
+		//Measure the phases of the requests (DNS, connection, TLS, time to first byte, read and parse)
+		pandoraConnection.setMetrics(MetricsRegistry.getDefault());
+
+		//Open the connection to Pandorabots in background, so that the first query is as fast as the rest
+		if (deviceConnectedToInternet())
+			pandoraConnection.warmUp(null);
+
+		//Index the labels of the installed apps in background, so that the <launch> requests are fast
+		AppLabelIndex.getInstance(this);
+
+		//Load the AIML files of the bot to answer on the device when Pandorabots cannot be reached
+		loadLocalBot();
 		
 		//Set up the speech button and progress circle
 		setSpeakButton();
         showProgressBar(false);
 	}
 
+	/**
+	 * Loads the AIML files included in the assets of the app (the contents of the AIML folder) in a
+	 * local interpreter, which is used as a fallback when the device is not connected to Internet or
+	 * Pandorabots is not available. It is done in background so that the app can start meanwhile.
+	 *
+	 * The categories are compiled and stored in a file the first time, so that the next times the
+	 * file is memory-mapped instead of parsing the AIML. The file is compiled again when the app is updated
+	 */
+	private void loadLocalBot() {
+		new Thread(new Runnable() {
+			public void run() {
+				try {
+					File image = new File(getFilesDir(), LOCAL_BOT_FILE);
+					long signature = getPackageManager().getPackageInfo(getPackageName(), 0).lastUpdateTime;
+					long start = System.currentTimeMillis();
+
+					AimlBot bot = AimlBot.open(botName, image, signature);
+					if (bot == null) {
+						bot = new AimlBot(botName);
+						for (String file : getAssets().list("")) {
+							if (file.endsWith(".aiml")) {
+								InputStream in = getAssets().open(file);
+								try {
+									bot.load(in);
+								} finally {
+									in.close();
+								}
+							}
+						}
+						bot.save(image, signature);
+					}
+					Log.d(LOGTAG, "Local bot loaded with " + bot.size() + " categories in " + (System.currentTimeMillis() - start) + " ms");
+					pandoraConnection.setLocalBot(bot, PandoraConnection.LocalMode.FALLBACK);
+				} catch (IOException e) {
+					Log.e(LOGTAG, "The local bot could not be loaded: " + e.getMessage());
+				} catch (PackageManager.NameNotFoundException e) {
+					Log.e(LOGTAG, "The local bot could not be loaded: " + e.getMessage());
+				} catch (RuntimeException e) {
+					Log.e(LOGTAG, "The local bot could not be loaded: " + e.getMessage());
+				}
+			}
+		}).start();
+	}
+
 	/**
 	 * Initializes the search button and its listener. When the button is pressed, a feedback is shown to the user
 	 * and the recognition starts
@@ -134,8 +230,10 @@ public class MainActivity extends VoiceActivity {
 	 * If there is any error, the <code>processAsrError</code> method is invoked.
 	 */
 	private void startListening(){
-		
-		if(deviceConnectedToInternet()){
+
+		boolean connected = deviceConnectedToInternet();
+		pandoraConnection.setOnline(connected); //If it is not connected, only the local bot can answer
+		if(connected || pandoraConnection.getLocalBot() != null){
 			try {
 				
 				/*Start listening, with the following default parameters:
@@ -148,7 +246,7 @@ public class MainActivity extends VoiceActivity {
 				Log.e(LOGTAG, e.getMessage());
 			}	
 		} else {
-				Log.e(LOGTAG, "Device not connected to Internet");	
+				Log.e(LOGTAG, "Device not connected to Internet and the local bot is not available");
 		}
 	}
 
@@ -191,6 +289,7 @@ public class MainActivity extends VoiceActivity {
 	public void processAsrError(int errorCode) {
 		setDefaultButtonAppearance();
         showProgressBar(false);
+		speculator.cancel(); //The responses to the partial results will not be used
 
 		//Possible bug in Android SpeechRecognizer: NO_MATCH errors even before the ASR
 		// has even tried to recognized. We have adopted the solution proposed in:
@@ -232,7 +331,7 @@ public class MainActivity extends VoiceActivity {
 				});
 
 				Log.e(LOGTAG, "Error when attempting to listen: " + errorMsg);
-				try { speak(errorMsg,"EN", ID_PROMPT_INFO); } catch (Exception e) { Log.e(LOGTAG, "TTS not accessible"); }
+				try { speakPrompt(errorMsg,"EN", ID_PROMPT_INFO); } catch (Exception e) { Log.e(LOGTAG, "TTS not accessible"); }
 			}
 		}
 
@@ -242,6 +341,24 @@ public class MainActivity extends VoiceActivity {
 	@Override
 	public void processAsrReadyForSpeech() {}
 
+	/**
+	 * Records the gap between turns when listening continuously
+	 */
+	@Override
+	public void processAsrTurnGap(long micros) {
+		MetricsRegistry.getDefault().record("asr.turn_gap", micros);
+	}
+
+	/**
+	 * Sends the best partial recognition result to Pandorabots when it is stable, so that the response
+	 * may be ready when the final result is obtained
+	 */
+	@Override
+	public void processAsrPartialResults(List<String> nBestList, boolean stable) {
+		if (stable)
+			speculator.onPartialResult(nBestList.get(0));
+	}
+
 	/**
 	 * Initiates interaction with Pandorabots with the results of the recognition
 	 */
@@ -258,12 +375,28 @@ public class MainActivity extends VoiceActivity {
 			if(nBestList.size()>0){
 				String userQuery = nBestList.get(0); //We will use the best result
 
-				try {
-					String response = pandoraConnection.talk(userQuery); //Query to pandorabots
-					processBotResults(response); //Process the bot response
-				} catch (PandoraException e) {
-                    processBotErrors(e.getErrorCode());
-                }
+				//Query to pandorabots in background, so that the main thread is not blocked by the network
+				//(the response to a previous partial result is used if it was the same query)
+				speculator.onFinalResult(userQuery, new PandoraListener() {
+					@Override
+					public void onBotResponse(final String response) {
+						runOnUiThread(new Runnable() {
+							public void run() {
+								processBotResults(response); //Process the bot response
+							}
+						});
+					}
+
+					@Override
+					public void onBotError(final PandoraException e) {
+						runOnUiThread(new Runnable() {
+							public void run() {
+								showProgressBar(false);
+								processBotErrors(e.getErrorCode());
+							}
+						});
+					}
+				});
 			}
 		}
 
@@ -304,7 +437,7 @@ public class MainActivity extends VoiceActivity {
 		}
 
 		try {
-			speak(errormsg, "EN", ID_PROMPT_INFO);
+			speakPrompt(errormsg, "EN", ID_PROMPT_INFO);
 			Log.e(LOGTAG, getResources().getString(R.string.connectionerror_prompt));
 		} catch (Exception e) {
 			Log.e(LOGTAG, "The message '" + errormsg + "' could not be synthesized");
@@ -337,8 +470,9 @@ public class MainActivity extends VoiceActivity {
 		// Send responses with <oob> for further processing
 		else{
 			try {
-                PandoraResultProcessor oob=new PandoraResultProcessor(this, ID_PROMPT_INFO);
-				oob.processOobOutput(result);
+				if (oobProcessor == null)
+					oobProcessor = new PandoraResultProcessor(this, ID_PROMPT_INFO);
+				oobProcessor.processOobOutput(result);
 			} catch (Exception e) {
 				Log.d(LOGTAG, e.getMessage());
 			}
@@ -348,21 +482,19 @@ public class MainActivity extends VoiceActivity {
 	
 	
 	/**
-	 * Removes HTML tags from a string
+	 * Removes HTML tags and entities from a string, reusing the same buffer for all the responses
 	 * 
-	 * @author http://stackoverflow.com/questions/240546/removing-html-from-a-java-string
 	 * @param string text with html tags
 	 * @return text without html tags
 	 */
 	private String removeTags(String string) {
-		Pattern REMOVE_TAGS = Pattern.compile("<.+?>");
-
 	    if (string == null || string.length() == 0) {
 	        return string;
 	    }
 
-	    Matcher m = REMOVE_TAGS.matcher(string);
-	    return m.replaceAll("");
+	    if (plainText.length < string.length())
+	        plainText = new char[string.length()];
+	    return new String(plainText, 0, MarkupStripper.strip(string, plainText));
 	}
 	
 	
@@ -378,12 +510,21 @@ public class MainActivity extends VoiceActivity {
 	}
 	
 	/**
-	 * Shuts down the TTS engine when finished
+	 * Shuts down the TTS engine and the oob processor when finished and stores the cached bot responses
 	 */   
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		shutdown();
+		if (oobProcessor != null)
+			oobProcessor.shutdown();
+		PandoraResponseCache cache = pandoraConnection.getCache();
+		if (cache != null) {
+			Log.d(LOGTAG, "Response cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+			cache.save();
+		}
+		Log.d(LOGTAG, "Speculative queries: " + speculator.getHits() + " used, " + speculator.getMisses() + " discarded");
+		MetricsRegistry.getDefault().dump(LOGTAG);
 	}
 
 	/**
@@ -397,7 +538,7 @@ public class MainActivity extends VoiceActivity {
 	 */
 	@Override
 	public void onTTSDone(String uttId) {
-		if(uttId.equals(ID_PROMPT_QUERY.toString()))
+		if(!BARGE_IN && uttId.equals(ID_PROMPT_QUERY.toString()))
 			startListening();
 		
 	}
@@ -418,10 +559,12 @@ public class MainActivity extends VoiceActivity {
 	 * In this case it just writes in the log.
 	 */
 	@Override
-	public void onTTSStart(String uttId) {
+	public void onTTSStart(final String uttId) {
         runOnUiThread(new Runnable() {
             public void run() {
                 showProgressBar(false); //the app has finished processing the user input, so it hides the progress circle
+                if (BARGE_IN && uttId.equals(ID_PROMPT_QUERY.toString()))
+                    startListening(); //With barge-in, the user can answer the questions before they end
             }
         });
         Log.e(LOGTAG, "TTS starts speaking");
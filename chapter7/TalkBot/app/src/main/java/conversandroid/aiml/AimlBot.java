@@ -0,0 +1,604 @@
+package conversandroid.aiml;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.text.DateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+
+/**
+ * Interpreter of AIML that runs on the device, so that a bot can answer without
+ * connecting to Pandorabots. It loads the AIML files of the bot and responds to the inputs
+ * with the same markup as the service, including the <oob> tags understood by <code>PandoraResultProcessor</code>.
+ *
+ * It supports the most frequent AIML elements: the wildcards *, _, ^ and #, &lt;that&gt; and &lt;topic&gt;
+ * in the categories, and &lt;star&gt;, &lt;thatstar&gt;, &lt;topicstar&gt;, &lt;srai&gt;, &lt;sr&gt;, &lt;random&gt;,
+ * &lt;condition&gt;, &lt;get&gt;, &lt;set&gt;, &lt;think&gt;, &lt;bot&gt;, &lt;date&gt;, &lt;uppercase&gt;,
+ * &lt;lowercase&gt;, &lt;formal&gt; and &lt;sentence&gt; in the templates. Any other element (e.g. &lt;oob&gt; and
+ * its contents) is copied to the response after processing its children.
+ *
+ * Once the files are loaded, the categories can be compiled and saved in a file with <code>save</code>,
+ * so that the next time the bot can be created with <code>open</code> without parsing the AIML again.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class AimlBot {
+
+    private static final int MAX_SRAI_DEPTH = 16; //To avoid infinite recursion in <srai>
+    private static final String UNKNOWN = "UNKNOWN"; //Value of an empty that or topic
+
+    private Graphmaster graphmaster = new Graphmaster(); //Null if the bot was opened from a compiled image
+    private PatternMatcher matcher = graphmaster;
+    private final Map<String, String> predicates = new HashMap<String, String>();
+    private final Map<String, String> properties = new HashMap<String, String>();
+    private final Random random = new Random();
+    private DocumentBuilder builder = null;
+
+    private String that = UNKNOWN;
+
+    /**
+     * Creates a bot without categories
+     * @param name name of the bot (the value of &lt;bot name="name"/&gt;)
+     */
+    public AimlBot(String name) {
+        properties.put("name", name);
+    }
+
+    /**
+     * Sets a property of the bot, which is obtained with &lt;bot name="..."/&gt;
+     */
+    public synchronized void setProperty(String name, String value) {
+        properties.put(name, value);
+    }
+
+    /**
+     * Reads the categories of an AIML file
+     * @param in contents of the file
+     * @throws IOException when the file cannot be read or it is not valid AIML
+     */
+    public synchronized void load(InputStream in) throws IOException {
+        if (graphmaster == null)
+            throw new IllegalStateException("Cannot add files to a bot opened from a compiled image");
+        matcher = graphmaster;
+
+        Document doc;
+        try {
+            doc = getBuilder().parse(new InputSource(new StringReader(readAiml(in))));
+        } catch (Exception e) {
+            throw new IOException("Invalid AIML file: " + e.getMessage());
+        }
+
+        Element root = doc.getDocumentElement();
+        for (Node node = root.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node instanceof Element) {
+                Element element = (Element) node;
+                if (element.getTagName().equals("category")) {
+                    addCategory(element, "*");
+                } else if (element.getTagName().equals("topic")) {
+                    String topic = element.getAttribute("name");
+                    for (Element category : children(element, "category"))
+                        addCategory(category, topic);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return matcher of the categories loaded: the tree built from the files, or the compiled image
+     */
+    synchronized PatternMatcher getMatcher() {
+        return matcher;
+    }
+
+    /**
+     * @return number of categories loaded
+     */
+    public synchronized int size() {
+        return matcher.size();
+    }
+
+    /**
+     * Compiles the categories loaded, so that the inputs are matched faster. It is invoked
+     * automatically by <code>save</code>, and should be invoked after loading all the files
+     */
+    public synchronized void compile() throws IOException {
+        if (!(matcher instanceof CompiledGraphmaster))
+            matcher = CompiledGraphmaster.compile(graphmaster, 0);
+    }
+
+    /**
+     * Compiles the categories loaded and stores them in a file, which can be read with <code>open</code>
+     * @param file file in which the categories are stored
+     * @param signature value that identifies the AIML files loaded (e.g. their version or modification date)
+     */
+    public synchronized void save(File file, long signature) throws IOException {
+        CompiledGraphmaster compiled = (matcher instanceof CompiledGraphmaster) ? (CompiledGraphmaster) matcher : null;
+        if (compiled == null || compiled.getSignature() != signature) {
+            if (graphmaster == null)
+                throw new IllegalStateException("Cannot change the signature of a bot opened from a compiled image");
+            compiled = CompiledGraphmaster.compile(graphmaster, signature);
+            matcher = compiled;
+        }
+        compiled.save(file);
+    }
+
+    /**
+     * Creates a bot with the categories stored in a file with <code>save</code>. The file is memory-mapped,
+     * so the categories are not read until they are used
+     * @param name name of the bot (the value of &lt;bot name="name"/&gt;)
+     * @param file file in which the categories were stored
+     * @param signature value that identifies the AIML files, it must be the same used when saving
+     * @return bot, or null if the file does not exist, it is not valid or its signature is different
+     */
+    public static AimlBot open(String name, File file, long signature) {
+        if (!file.exists())
+            return null;
+        CompiledGraphmaster compiled;
+        try {
+            compiled = CompiledGraphmaster.map(file);
+        } catch (IOException e) {
+            return null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+        if (compiled.getSignature() != signature)
+            return null;
+
+        AimlBot bot = new AimlBot(name);
+        bot.graphmaster = null;
+        bot.matcher = compiled;
+        return bot;
+    }
+
+    /**
+     * Responds to the input of the user
+     * @param input text for conversation
+     * @return text of bot's response, or null if no category matches the input
+     */
+    public synchronized String respond(String input) {
+        StringBuilder response = new StringBuilder();
+        boolean matched = false;
+        for (String sentence : input.split("[.?!;]+")) {
+            if (sentence.trim().length() == 0)
+                continue;
+            String answer = respond(sentence, 0);
+            if (answer == null)
+                continue;
+            matched = true;
+            if (response.length() > 0 && answer.length() > 0)
+                response.append(' ');
+            response.append(answer);
+        }
+        if (!matched)
+            return null;
+
+        String text = collapseWhitespace(response.toString());
+        String last = lastSentence(text);
+        that = words(last).length > 0 ? last : UNKNOWN;
+        return text;
+    }
+
+    /**
+     * Matches a sentence and processes the template of the category
+     */
+    private String respond(String sentence, int depth) {
+        if (depth > MAX_SRAI_DEPTH)
+            return null;
+
+        String[] originalWords = originalWords(sentence);
+        String[] inputWords = words(sentence);
+        if (inputWords.length == 0)
+            return null;
+        String[] thatWords = words(that);
+        String topicValue = predicates.get("topic");
+        String[] topicWords = words(topicValue == null || topicValue.length() == 0 ? UNKNOWN : topicValue);
+        String[] originalThat = originalWords(that);
+        String[] originalTopic = originalWords(topicValue == null || topicValue.length() == 0 ? UNKNOWN : topicValue);
+
+        List<int[]> wildcards = new ArrayList<int[]>();
+        AimlCategory category = matcher.match(Graphmaster.path(inputWords, thatWords, topicWords), wildcards);
+        if (category == null)
+            return null;
+
+        //Split the words matched by the wildcards into stars, thatstars and topicstars
+        int thatStart = inputWords.length + 1;
+        int topicStart = thatStart + thatWords.length + 1;
+        Match match = new Match(depth);
+        for (int[] w : wildcards) {
+            if (w[1] <= inputWords.length)
+                match.stars.add(join(originalWords, w[0], w[1]));
+            else if (w[1] < topicStart)
+                match.thatStars.add(join(originalThat, w[0] - thatStart, w[1] - thatStart));
+            else
+                match.topicStars.add(join(originalTopic, w[0] - topicStart, w[1] - topicStart));
+        }
+
+        Element template = parseTemplate(category);
+        if (template == null)
+            return null;
+        StringBuilder out = new StringBuilder();
+        evaluateChildren(template, match, out);
+        return out.toString().trim();
+    }
+
+    /**
+     * Words captured by the wildcards of the category matched
+     */
+    private static class Match {
+        final List<String> stars = new ArrayList<String>();
+        final List<String> thatStars = new ArrayList<String>();
+        final List<String> topicStars = new ArrayList<String>();
+        final int depth;
+
+        Match(int depth) {
+            this.depth = depth;
+        }
+    }
+
+    private void evaluateChildren(Node parent, Match match, StringBuilder out) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE)
+                out.append(node.getNodeValue());
+            else if (node instanceof Element)
+                evaluate((Element) node, match, out);
+        }
+    }
+
+    private String evaluateChildren(Node parent, Match match) {
+        StringBuilder out = new StringBuilder();
+        evaluateChildren(parent, match, out);
+        return out.toString();
+    }
+
+    /**
+     * Processes an element of the template, appending the result to out
+     */
+    private void evaluate(Element element, Match match, StringBuilder out) {
+        String tag = element.getTagName();
+
+        if (tag.equals("star")) {
+            out.append(star(match.stars, element));
+        } else if (tag.equals("thatstar")) {
+            out.append(star(match.thatStars, element));
+        } else if (tag.equals("topicstar")) {
+            out.append(star(match.topicStars, element));
+        } else if (tag.equals("srai")) {
+            String result = respond(evaluateChildren(element, match), match.depth + 1);
+            if (result != null)
+                out.append(result);
+        } else if (tag.equals("sr")) {
+            String result = respond(star(match.stars, element), match.depth + 1);
+            if (result != null)
+                out.append(result);
+        } else if (tag.equals("random")) {
+            List<Element> items = children(element, "li");
+            if (!items.isEmpty())
+                evaluateChildren(items.get(random.nextInt(items.size())), match, out);
+        } else if (tag.equals("condition")) {
+            evaluateCondition(element, match, out);
+        } else if (tag.equals("get")) {
+            String value = predicates.get(element.getAttribute("name"));
+            if (value != null)
+                out.append(value);
+        } else if (tag.equals("set")) {
+            String value = evaluateChildren(element, match).trim();
+            predicates.put(element.getAttribute("name"), value);
+            out.append(value);
+        } else if (tag.equals("think")) {
+            evaluateChildren(element, match);
+        } else if (tag.equals("bot")) {
+            String value = properties.get(element.getAttribute("name"));
+            if (value != null)
+                out.append(value);
+        } else if (tag.equals("date")) {
+            out.append(DateFormat.getDateInstance(DateFormat.LONG, Locale.US).format(new Date()));
+        } else if (tag.equals("uppercase")) {
+            out.append(evaluateChildren(element, match).toUpperCase(Locale.US));
+        } else if (tag.equals("lowercase")) {
+            out.append(evaluateChildren(element, match).toLowerCase(Locale.US));
+        } else if (tag.equals("formal")) {
+            out.append(formal(evaluateChildren(element, match)));
+        } else if (tag.equals("sentence")) {
+            String text = evaluateChildren(element, match).trim();
+            if (text.length() > 0)
+                out.append(Character.toUpperCase(text.charAt(0))).append(text.substring(1));
+        } else if (tag.equals("person") || tag.equals("person2") || tag.equals("gender")) {
+            if (element.hasChildNodes())
+                evaluateChildren(element, match, out);
+            else
+                out.append(star(match.stars, element));
+        } else {
+            //Other markup (e.g. <oob>) is kept in the response. Empty elements are written with
+            //opening and closing tags, which is how PandoraResultProcessor looks for them (e.g. "<map>")
+            out.append('<').append(tag);
+            NamedNodeMap attributes = element.getAttributes();
+            for (int i = 0; i < attributes.getLength(); i++) {
+                Node attribute = attributes.item(i);
+                out.append(' ').append(attribute.getNodeName()).append("=\"").append(escape(attribute.getNodeValue())).append('"');
+            }
+            out.append('>');
+            evaluateChildren(element, match, out);
+            out.append("</").append(tag).append('>');
+        }
+    }
+
+    /**
+     * Processes &lt;condition name="x" value="y"&gt;, &lt;condition name="x"&gt;&lt;li value="y"&gt;...
+     * and &lt;condition&gt;&lt;li name="x" value="y"&gt;...
+     */
+    private void evaluateCondition(Element condition, Match match, StringBuilder out) {
+        String name = condition.getAttribute("name");
+        if (condition.hasAttribute("value")) {
+            if (matchesValue(predicates.get(name), condition.getAttribute("value")))
+                evaluateChildren(condition, match, out);
+            return;
+        }
+        for (Element item : children(condition, "li")) {
+            String itemName = item.hasAttribute("name") ? item.getAttribute("name") : name;
+            if (!item.hasAttribute("value") || matchesValue(predicates.get(itemName), item.getAttribute("value"))) {
+                evaluateChildren(item, match, out);
+                return;
+            }
+        }
+    }
+
+    private static boolean matchesValue(String predicate, String value) {
+        if (value.trim().equals("*"))
+            return predicate != null && predicate.length() > 0;
+        return predicate != null && predicate.trim().equalsIgnoreCase(value.trim());
+    }
+
+    private static String star(List<String> stars, Element element) {
+        int index = 1;
+        if (element.hasAttribute("index")) {
+            try {
+                index = Integer.parseInt(element.getAttribute("index").trim());
+            } catch (NumberFormatException e) {
+                index = 1;
+            }
+        }
+        return (index >= 1 && index <= stars.size()) ? stars.get(index - 1) : "";
+    }
+
+    /**
+     * Adds a category to the graphmaster
+     */
+    private void addCategory(Element category, String topic) {
+        List<Element> patterns = children(category, "pattern");
+        List<Element> templates = children(category, "template");
+        if (patterns.isEmpty() || templates.isEmpty())
+            return;
+        List<Element> thats = children(category, "that");
+
+        String[] pattern = patternWords(patterns.get(0));
+        String[] that = thats.isEmpty() ? new String[]{"*"} : patternWords(thats.get(0));
+        String[] topicWords = patternWords(topic);
+        if (pattern.length == 0)
+            return;
+
+        AimlCategory c = new AimlCategory(join(pattern, 0, pattern.length), join(that, 0, that.length),
+                join(topicWords, 0, topicWords.length), innerXml(templates.get(0)));
+        graphmaster.add(Graphmaster.path(pattern, that.length > 0 ? that : new String[]{"*"},
+                topicWords.length > 0 ? topicWords : new String[]{"*"}), c);
+    }
+
+    /**
+     * Words of a pattern. &lt;set&gt; and &lt;bot&gt; elements (whose values are not known when loading)
+     * are considered as a "*" wildcard
+     */
+    private static String[] patternWords(Element pattern) {
+        StringBuilder text = new StringBuilder();
+        for (Node node = pattern.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.TEXT_NODE)
+                text.append(node.getNodeValue());
+            else if (node instanceof Element)
+                text.append(" * ");
+        }
+        return patternWords(text.toString());
+    }
+
+    private static String[] patternWords(String pattern) {
+        List<String> words = new ArrayList<String>();
+        for (String token : pattern.trim().split("\\s+")) {
+            if (Graphmaster.isWildcard(token)) {
+                words.add(token);
+            } else {
+                for (String word : words(token))
+                    words.add(word);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    /**
+     * Normalizes a text into the words used for matching: upper case, without apostrophes
+     * and splitting at any other character that is not a letter or digit
+     */
+    static String[] words(String text) {
+        return split(text, true);
+    }
+
+    /**
+     * Same words as <code>words</code> but keeping their case, used for the stars
+     */
+    static String[] originalWords(String text) {
+        return split(text, false);
+    }
+
+    private static String[] split(String text, boolean upperCase) {
+        List<String> words = new ArrayList<String>();
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i <= text.length(); i++) {
+            char c = i < text.length() ? text.charAt(i) : ' ';
+            if (Character.isLetterOrDigit(c)) {
+                word.append(upperCase ? Character.toUpperCase(c) : c);
+            } else if (c != '\'' && word.length() > 0) {
+                words.add(word.toString());
+                word.setLength(0);
+            }
+        }
+        return words.toArray(new String[words.size()]);
+    }
+
+    private static String join(String[] words, int start, int end) {
+        StringBuilder text = new StringBuilder();
+        for (int i = Math.max(0, start); i < Math.min(end, words.length); i++) {
+            if (text.length() > 0)
+                text.append(' ');
+            text.append(words[i]);
+        }
+        return text.toString();
+    }
+
+    private static String collapseWhitespace(String text) {
+        return text.trim().replaceAll("\\s+", " ");
+    }
+
+    private static String formal(String text) {
+        StringBuilder out = new StringBuilder(text.length());
+        boolean start = true;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            out.append(start ? Character.toUpperCase(c) : Character.toLowerCase(c));
+            start = Character.isWhitespace(c);
+        }
+        return out.toString();
+    }
+
+    /**
+     * Last sentence of the response without markup, which is used as "that" for the next input
+     */
+    private static String lastSentence(String response) {
+        String text = response.replaceAll("<[^>]*>", " ");
+        String[] sentences = text.split("[.?!]+");
+        for (int i = sentences.length - 1; i >= 0; i--) {
+            if (sentences[i].trim().length() > 0)
+                return sentences[i].trim();
+        }
+        return "";
+    }
+
+    private static List<Element> children(Element parent, String tag) {
+        List<Element> result = new ArrayList<Element>();
+        NodeList nodes = parent.getChildNodes();
+        for (int i = 0; i < nodes.getLength(); i++) {
+            Node node = nodes.item(i);
+            if (node instanceof Element && ((Element) node).getTagName().equals(tag))
+                result.add((Element) node);
+        }
+        return result;
+    }
+
+    /**
+     * Parses the template of a category the first time it is used
+     */
+    private Element parseTemplate(AimlCategory category) {
+        if (category.parsedTemplate == null) {
+            try {
+                Document doc = getBuilder().parse(new InputSource(new StringReader("<template>" + category.template + "</template>")));
+                category.parsedTemplate = doc.getDocumentElement();
+            } catch (Exception e) {
+                return null;
+            }
+        }
+        return category.parsedTemplate;
+    }
+
+    /**
+     * Writes the contents of an element as XML text
+     */
+    static String innerXml(Element element) {
+        StringBuilder out = new StringBuilder();
+        writeChildren(element, out);
+        return out.toString();
+    }
+
+    private static void writeChildren(Node parent, StringBuilder out) {
+        for (Node node = parent.getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (node.getNodeType() == Node.TEXT_NODE || node.getNodeType() == Node.CDATA_SECTION_NODE) {
+                out.append(escape(node.getNodeValue()));
+            } else if (node instanceof Element) {
+                Element element = (Element) node;
+                out.append('<').append(element.getTagName());
+                NamedNodeMap attributes = element.getAttributes();
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    Node attribute = attributes.item(i);
+                    out.append(' ').append(attribute.getNodeName()).append("=\"").append(escape(attribute.getNodeValue())).append('"');
+                }
+                if (element.hasChildNodes()) {
+                    out.append('>');
+                    writeChildren(element, out);
+                    out.append("</").append(element.getTagName()).append('>');
+                } else {
+                    out.append("/>");
+                }
+            }
+        }
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Reads an AIML file, discarding anything before the XML declaration (some files start with a comment)
+     */
+    private static String readAiml(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) > 0)
+            bytes.write(buffer, 0, n);
+        String text = bytes.toString("UTF-8");
+        int declaration = text.indexOf("<?xml");
+        return declaration > 0 ? text.substring(declaration) : text;
+    }
+
+    private DocumentBuilder getBuilder() throws Exception {
+        if (builder == null)
+            builder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+        return builder;
+    }
+}
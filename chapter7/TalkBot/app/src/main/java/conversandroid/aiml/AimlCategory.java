@@ -0,0 +1,55 @@
+package conversandroid.aiml;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.w3c.dom.Element;
+
+
+/**
+ * AIML category: the pattern, that and topic that the input must match, and the template used
+ * to build the response. The template is kept as XML text and is parsed the first time it is used.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+class AimlCategory {
+
+    final String pattern;
+    final String that;
+    final String topic;
+    final String template;
+
+    Element parsedTemplate = null;
+
+    AimlCategory(String pattern, String that, String topic, String template) {
+        this.pattern = pattern;
+        this.that = that;
+        this.topic = topic;
+        this.template = template;
+    }
+
+    @Override
+    public String toString() {
+        return pattern + " <THAT> " + that + " <TOPIC> " + topic;
+    }
+}
@@ -0,0 +1,422 @@
+package conversandroid.aiml;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+
+/**
+ * Graphmaster compiled into a compact binary image, in which the words are replaced by integer ids and
+ * the nodes and edges of the tree are stored in integer arrays. The image can be written to a file
+ * and memory-mapped when the app starts, so that the AIML files do not have to be parsed again.
+ *
+ * Format of the image (big endian):
+ *   header: magic, version, signature (long), number of words, nodes, edges and categories, size of the strings
+ *   words: offset of each word in the strings, sorted alphabetically (its id is WORDS + its position)
+ *   nodes: for each node, NODE_INTS integers: first edge, number of edges, category (or -1) and the child
+ *          nodes for the wildcards #, _, ^ and * (or -1)
+ *   edges: id of the word of each edge, then the node it leads to. The edges of a node are sorted by word id
+ *   categories: offsets of the pattern, that, topic and template of each category in the strings
+ *   strings: each one is stored as its length in bytes followed by its UTF-8 bytes
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+class CompiledGraphmaster implements PatternMatcher {
+
+    private static final int MAGIC = 0x41494D4C; //"AIML"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 36;
+
+    //Ids of the wildcards and separators, the words take the following ones
+    private static final int HASH = 0;
+    private static final int UNDERSCORE = 1;
+    private static final int CARET = 2;
+    private static final int STAR = 3;
+    private static final int THAT = 4;
+    private static final int TOPIC = 5;
+    private static final int WORDS = 6;
+    private static final String[] SPECIAL = {"#", "_", "^", "*", Graphmaster.THAT, Graphmaster.TOPIC};
+
+    private static final int NODE_INTS = 7;
+    private static final int EDGE_START = 0;
+    private static final int EDGE_COUNT = 1;
+    private static final int CATEGORY = 2;
+    private static final int WILDCARDS = 3; //Children for HASH, UNDERSCORE, CARET and STAR, in this order
+
+    private final ByteBuffer image;
+    private final long signature;
+    private final Map<String, Integer> words;
+    private final IntBuffer nodes;
+    private final IntBuffer edgeWords;
+    private final IntBuffer edgeNodes;
+    private final IntBuffer categoryStrings;
+    private final int stringsStart;
+    private final AimlCategory[] categories; //Created the first time they are matched
+
+    /**
+     * Reads an image. The buffer is used directly (it is not copied), so it may be a memory-mapped file
+     */
+    CompiledGraphmaster(ByteBuffer image) throws IOException {
+        this.image = image;
+        if (image.capacity() < HEADER_BYTES || image.getInt(0) != MAGIC || image.getInt(4) != VERSION)
+            throw new IOException("Invalid graphmaster image");
+        signature = image.getLong(8);
+        int numWords = image.getInt(16);
+        int numNodes = image.getInt(20);
+        int numEdges = image.getInt(24);
+        int numCategories = image.getInt(28);
+        int stringsSize = image.getInt(32);
+
+        //The sizes of the sections are checked so that a truncated or corrupt file is rejected
+        long size = HEADER_BYTES + 4L * ((long) numWords + (long) numNodes * NODE_INTS + 2L * numEdges + 4L * numCategories) + stringsSize;
+        if (numWords < 0 || numNodes <= 0 || numEdges < 0 || numCategories < 0 || stringsSize < 0 || size != image.capacity())
+            throw new IOException("Invalid graphmaster image size");
+
+        int pos = HEADER_BYTES;
+        IntBuffer wordOffsets = slice(pos, numWords);
+        pos += numWords * 4;
+        nodes = slice(pos, numNodes * NODE_INTS);
+        pos += numNodes * NODE_INTS * 4;
+        edgeWords = slice(pos, numEdges);
+        pos += numEdges * 4;
+        edgeNodes = slice(pos, numEdges);
+        pos += numEdges * 4;
+        categoryStrings = slice(pos, numCategories * 4);
+        pos += numCategories * 16;
+        stringsStart = pos;
+
+        words = new HashMap<String, Integer>(2 * (numWords + WORDS));
+        for (int i = 0; i < WORDS; i++)
+            words.put(SPECIAL[i], i);
+        for (int i = 0; i < numWords; i++)
+            words.put(string(wordOffsets.get(i)), WORDS + i);
+        categories = new AimlCategory[numCategories];
+    }
+
+    /**
+     * Memory-maps an image stored in a file
+     */
+    static CompiledGraphmaster map(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            return new CompiledGraphmaster(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (RuntimeException e) { //Corrupt contents (e.g. a word whose offset is out of the image)
+            throw new IOException("Invalid graphmaster image: " + e);
+        } finally {
+            in.close(); //The mapping remains valid after closing the channel
+        }
+    }
+
+    /**
+     * Writes the image to a file. It is written in a temporary file that replaces the previous one when it
+     * is complete, so that the file is never left truncated if the app is stopped while saving
+     */
+    void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            ByteBuffer copy = image.duplicate();
+            copy.clear();
+            FileChannel channel = out.getChannel();
+            while (copy.hasRemaining())
+                channel.write(copy);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file))) {
+            tmp.delete();
+            throw new IOException("The image could not be moved to " + file);
+        }
+    }
+
+    /**
+     * @return value that identifies the AIML files from which the image was compiled
+     */
+    long getSignature() {
+        return signature;
+    }
+
+    @Override
+    public int size() {
+        return categories.length;
+    }
+
+    @Override
+    public AimlCategory match(String[] path, List<int[]> wildcards) {
+        int[] ids = new int[path.length];
+        for (int i = 0; i < path.length; i++)
+            ids[i] = id(path[i]);
+        int category = match(0, ids, 0, wildcards);
+        return category < 0 ? null : category(category);
+    }
+
+    private int match(int node, int[] path, int pos, List<int[]> wildcards) {
+        int base = node * NODE_INTS;
+        if (pos == path.length && nodes.get(base + CATEGORY) >= 0)
+            return nodes.get(base + CATEGORY);
+
+        int category = matchWildcard(nodes.get(base + WILDCARDS + HASH), true, path, pos, wildcards);
+        if (category < 0)
+            category = matchWildcard(nodes.get(base + WILDCARDS + UNDERSCORE), false, path, pos, wildcards);
+        if (category < 0 && pos < path.length && path[pos] >= 0) {
+            int next = child(base, path[pos]);
+            if (next >= 0)
+                category = match(next, path, pos + 1, wildcards);
+        }
+        if (category < 0)
+            category = matchWildcard(nodes.get(base + WILDCARDS + CARET), true, path, pos, wildcards);
+        if (category < 0)
+            category = matchWildcard(nodes.get(base + WILDCARDS + STAR), false, path, pos, wildcards);
+        return category;
+    }
+
+    private int matchWildcard(int next, boolean zeroOrMore, int[] path, int pos, List<int[]> wildcards) {
+        if (next < 0)
+            return -1;
+
+        int end = pos;
+        while (end < path.length && path[end] != THAT && path[end] != TOPIC)
+            end++;
+
+        for (int i = zeroOrMore ? pos : pos + 1; i <= end; i++) {
+            wildcards.add(new int[]{pos, i});
+            int category = match(next, path, i, wildcards);
+            if (category >= 0)
+                return category;
+            wildcards.remove(wildcards.size() - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Finds the edge of the node for the word with a binary search
+     */
+    private int child(int base, int word) {
+        int low = nodes.get(base + EDGE_START);
+        int high = low + nodes.get(base + EDGE_COUNT) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int w = edgeWords.get(mid);
+            if (w < word)
+                low = mid + 1;
+            else if (w > word)
+                high = mid - 1;
+            else
+                return edgeNodes.get(mid);
+        }
+        return -1;
+    }
+
+    /**
+     * @return id of the word, or -1 if it does not appear in any pattern
+     */
+    private int id(String word) {
+        Integer id = words.get(word);
+        return id == null ? -1 : id;
+    }
+
+    private synchronized AimlCategory category(int index) {
+        if (categories[index] == null) {
+            categories[index] = new AimlCategory(
+                    string(categoryStrings.get(index * 4)),
+                    string(categoryStrings.get(index * 4 + 1)),
+                    string(categoryStrings.get(index * 4 + 2)),
+                    string(categoryStrings.get(index * 4 + 3)));
+        }
+        return categories[index];
+    }
+
+    private IntBuffer slice(int position, int length) {
+        ByteBuffer buffer = image.duplicate();
+        buffer.position(position);
+        buffer.limit(position + length * 4);
+        return buffer.slice().asIntBuffer();
+    }
+
+    private String string(int offset) {
+        int pos = stringsStart + offset;
+        int length = image.getInt(pos);
+        byte[] bytes = new byte[length];
+        ByteBuffer buffer = image.duplicate();
+        buffer.position(pos + 4);
+        buffer.get(bytes);
+        try {
+            return new String(bytes, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compiles a graphmaster into an image
+     * @param graphmaster tree built from the AIML files
+     * @param signature value that identifies the AIML files (e.g. their modification date)
+     */
+    static CompiledGraphmaster compile(Graphmaster graphmaster, long signature) throws IOException {
+        //Number the nodes in breadth-first order and collect the words and categories
+        List<Graphmaster.Node> nodeList = new ArrayList<Graphmaster.Node>();
+        List<AimlCategory> categoryList = new ArrayList<AimlCategory>();
+        TreeSet<String> wordSet = new TreeSet<String>();
+        nodeList.add(graphmaster.root);
+        int numEdges = 0;
+        for (int i = 0; i < nodeList.size(); i++) {
+            Graphmaster.Node node = nodeList.get(i);
+            if (node.category != null)
+                categoryList.add(node.category);
+            if (node.children != null) {
+                for (Map.Entry<String, Graphmaster.Node> child : node.children.entrySet()) {
+                    nodeList.add(child.getValue());
+                    if (!Graphmaster.isWildcard(child.getKey())) {
+                        numEdges++;
+                        if (!Graphmaster.isSeparator(child.getKey()))
+                            wordSet.add(child.getKey());
+                    }
+                }
+            }
+        }
+        String[] sortedWords = wordSet.toArray(new String[wordSet.size()]);
+        Map<String, Integer> ids = new HashMap<String, Integer>();
+        for (int i = 0; i < SPECIAL.length; i++)
+            ids.put(SPECIAL[i], i);
+        for (int i = 0; i < sortedWords.length; i++)
+            ids.put(sortedWords[i], WORDS + i);
+        Map<Graphmaster.Node, Integer> nodeIds = new HashMap<Graphmaster.Node, Integer>();
+        for (int i = 0; i < nodeList.size(); i++)
+            nodeIds.put(nodeList.get(i), i);
+        Map<AimlCategory, Integer> categoryIds = new HashMap<AimlCategory, Integer>();
+        for (int i = 0; i < categoryList.size(); i++)
+            categoryIds.put(categoryList.get(i), i);
+
+        //Strings
+        StringTable strings = new StringTable();
+        int[] wordOffsets = new int[sortedWords.length];
+        for (int i = 0; i < sortedWords.length; i++)
+            wordOffsets[i] = strings.add(sortedWords[i]);
+        int[] categoryOffsets = new int[categoryList.size() * 4];
+        for (int i = 0; i < categoryList.size(); i++) {
+            AimlCategory c = categoryList.get(i);
+            categoryOffsets[i * 4] = strings.add(c.pattern);
+            categoryOffsets[i * 4 + 1] = strings.add(c.that);
+            categoryOffsets[i * 4 + 2] = strings.add(c.topic);
+            categoryOffsets[i * 4 + 3] = strings.add(c.template);
+        }
+
+        //Nodes and edges
+        int[] nodeInts = new int[nodeList.size() * NODE_INTS];
+        int[] edgeWordInts = new int[numEdges];
+        int[] edgeNodeInts = new int[numEdges];
+        int edge = 0;
+        for (int i = 0; i < nodeList.size(); i++) {
+            Graphmaster.Node node = nodeList.get(i);
+            int base = i * NODE_INTS;
+            nodeInts[base + CATEGORY] = node.category == null ? -1 : categoryIds.get(node.category);
+            for (int w = 0; w < 4; w++)
+                nodeInts[base + WILDCARDS + w] = -1;
+            nodeInts[base + EDGE_START] = edge;
+
+            List<int[]> edges = new ArrayList<int[]>();
+            if (node.children != null) {
+                for (Map.Entry<String, Graphmaster.Node> child : node.children.entrySet()) {
+                    int id = ids.get(child.getKey());
+                    int target = nodeIds.get(child.getValue());
+                    if (id < THAT)
+                        nodeInts[base + WILDCARDS + id] = target;
+                    else
+                        edges.add(new int[]{id, target});
+                }
+            }
+            int[][] sorted = edges.toArray(new int[edges.size()][]);
+            Arrays.sort(sorted, new Comparator<int[]>() {
+                @Override
+                public int compare(int[] a, int[] b) {
+                    return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+                }
+            });
+            for (int[] e : sorted) {
+                edgeWordInts[edge] = e[0];
+                edgeNodeInts[edge] = e[1];
+                edge++;
+            }
+            nodeInts[base + EDGE_COUNT] = sorted.length;
+        }
+
+        int size = HEADER_BYTES + 4 * (wordOffsets.length + nodeInts.length + 2 * numEdges + categoryOffsets.length) + strings.size();
+        ByteBuffer image = ByteBuffer.allocate(size);
+        image.putInt(MAGIC).putInt(VERSION).putLong(signature)
+                .putInt(sortedWords.length).putInt(nodeList.size()).putInt(numEdges).putInt(categoryList.size())
+                .putInt(strings.size());
+        IntBuffer ints = image.asIntBuffer();
+        ints.put(wordOffsets).put(nodeInts).put(edgeWordInts).put(edgeNodeInts).put(categoryOffsets);
+        image.position(size - strings.size());
+        image.put(strings.bytes(), 0, strings.size());
+        image.clear();
+        return new CompiledGraphmaster(image);
+    }
+
+    /**
+     * Strings of the image, stored only once each
+     */
+    private static class StringTable {
+        private final Map<String, Integer> offsets = new HashMap<String, Integer>();
+        private byte[] bytes = new byte[4096];
+        private int size = 0;
+
+        int add(String s) throws UnsupportedEncodingException {
+            Integer offset = offsets.get(s);
+            if (offset != null)
+                return offset;
+            byte[] utf8 = s.getBytes("UTF-8");
+            while (size + 4 + utf8.length > bytes.length)
+                bytes = Arrays.copyOf(bytes, bytes.length * 2);
+            ByteBuffer.wrap(bytes, size, 4).putInt(utf8.length);
+            System.arraycopy(utf8, 0, bytes, size + 4, utf8.length);
+            offsets.put(s, size);
+            size += 4 + utf8.length;
+            return size - 4 - utf8.length;
+        }
+
+        byte[] bytes() {
+            return bytes;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package conversandroid.aiml;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Graphmaster: tree with the paths "pattern &lt;THAT&gt; that &lt;TOPIC&gt; topic" of all the categories,
+ * in which each node corresponds to a word or wildcard. The input is matched by traversing the tree,
+ * trying at each node the alternatives in the order of priority defined by AIML:
+ * "#" (zero or more words), "_" (one or more), the word itself, "^" (zero or more) and "*" (one or more).
+ *
+ * It is used to build the tree while the AIML files are loaded. Afterwards, it is compiled into
+ * a <code>CompiledGraphmaster</code>, which is faster and can be stored in a file.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+class Graphmaster implements PatternMatcher {
+
+    static final String THAT = "<THAT>";
+    static final String TOPIC = "<TOPIC>";
+
+    //Wildcards in order of priority, and whether they match zero words
+    private static final String[] HIGH_WILDCARDS = {"#", "_"};
+    private static final String[] LOW_WILDCARDS = {"^", "*"};
+
+    static class Node {
+        Map<String, Node> children = null;
+        AimlCategory category = null;
+
+        Node child(String word) {
+            return children == null ? null : children.get(word);
+        }
+    }
+
+    final Node root = new Node();
+    private int size = 0;
+
+    /**
+     * Adds a category. If there was already a category with the same path, it is replaced
+     * @param path words of the pattern, that and topic, separated by THAT and TOPIC
+     */
+    void add(String[] path, AimlCategory category) {
+        Node node = root;
+        for (String word : path) {
+            Node next = node.child(word);
+            if (next == null) {
+                next = new Node();
+                if (node.children == null)
+                    node.children = new HashMap<String, Node>(4);
+                node.children.put(word, next);
+            }
+            node = next;
+        }
+        if (node.category == null)
+            size++;
+        node.category = category;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public AimlCategory match(String[] path, List<int[]> wildcards) {
+        return match(root, path, 0, wildcards);
+    }
+
+    private AimlCategory match(Node node, String[] path, int pos, List<int[]> wildcards) {
+        if (pos == path.length && node.category != null)
+            return node.category;
+
+        for (String wildcard : HIGH_WILDCARDS) {
+            AimlCategory category = matchWildcard(node.child(wildcard), wildcard, path, pos, wildcards);
+            if (category != null)
+                return category;
+        }
+
+        if (pos < path.length) {
+            Node next = node.child(path[pos]);
+            if (next != null) {
+                AimlCategory category = match(next, path, pos + 1, wildcards);
+                if (category != null)
+                    return category;
+            }
+        }
+
+        for (String wildcard : LOW_WILDCARDS) {
+            AimlCategory category = matchWildcard(node.child(wildcard), wildcard, path, pos, wildcards);
+            if (category != null)
+                return category;
+        }
+        return null;
+    }
+
+    /**
+     * Matches a wildcard with the shortest sequence of words (within the same section of the path)
+     * for which the rest of the path also matches
+     */
+    private AimlCategory matchWildcard(Node next, String wildcard, String[] path, int pos, List<int[]> wildcards) {
+        if (next == null)
+            return null;
+
+        int end = pos;
+        while (end < path.length && !isSeparator(path[end]))
+            end++;
+
+        int first = isZeroOrMore(wildcard) ? pos : pos + 1;
+        for (int i = first; i <= end; i++) {
+            wildcards.add(new int[]{pos, i});
+            AimlCategory category = match(next, path, i, wildcards);
+            if (category != null)
+                return category;
+            wildcards.remove(wildcards.size() - 1);
+        }
+        return null;
+    }
+
+    static boolean isWildcard(String word) {
+        return word.equals("*") || word.equals("_") || word.equals("#") || word.equals("^");
+    }
+
+    static boolean isZeroOrMore(String wildcard) {
+        return wildcard.equals("#") || wildcard.equals("^");
+    }
+
+    static boolean isSeparator(String word) {
+        return word.equals(THAT) || word.equals(TOPIC);
+    }
+
+    /**
+     * Builds the path "pattern &lt;THAT&gt; that &lt;TOPIC&gt; topic"
+     */
+    static String[] path(String[] pattern, String[] that, String[] topic) {
+        List<String> path = new ArrayList<String>(pattern.length + that.length + topic.length + 2);
+        for (String word : pattern)
+            path.add(word);
+        path.add(THAT);
+        for (String word : that)
+            path.add(word);
+        path.add(TOPIC);
+        for (String word : topic)
+            path.add(word);
+        return path.toArray(new String[path.size()]);
+    }
+}
@@ -0,0 +1,48 @@
+package conversandroid.aiml;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.List;
+
+
+/**
+ * Finds the AIML category that matches an input.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+interface PatternMatcher {
+
+    /**
+     * Finds the category that matches the path
+     * @param path words of the input, that and topic, separated by &lt;THAT&gt; and &lt;TOPIC&gt;
+     * @param wildcards receives the start and end positions in the path of the words matched by each wildcard
+     * @return category matched, or null if there is none
+     */
+    AimlCategory match(String[] path, List<int[]> wildcards);
+
+    /**
+     * @return number of categories
+     */
+    int size();
+}
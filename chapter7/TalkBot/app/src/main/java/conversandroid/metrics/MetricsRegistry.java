@@ -0,0 +1,129 @@
+package conversandroid.metrics;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Registry of histograms with the duration of the operations performed by the app (e.g. the phases of the
+ * requests to a web service), indexed by name. Their summaries can be written to logcat or to a file,
+ * and they can be read directly to check them.
+ *
+ * Durations are recorded in microseconds. Usually there is a single registry, obtained with <code>getDefault</code>
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry defaultRegistry = new MetricsRegistry();
+
+    private final Map<String, Histogram> histograms = new TreeMap<String, Histogram>();
+
+    /**
+     * @return registry shared by the whole app
+     */
+    public static MetricsRegistry getDefault() {
+        return defaultRegistry;
+    }
+
+    /**
+     * Returns the histogram with a name, creating it if it does not exist
+     * @param name name of the histogram, e.g. "pandora.dns"
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new Histogram(name);
+            histograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    /**
+     * Records a duration in a histogram
+     * @param name name of the histogram
+     * @param micros duration in microseconds
+     */
+    public void record(String name, long micros) {
+        histogram(name).record(micros);
+    }
+
+    /**
+     * Records the time elapsed since <code>startNanos</code>, obtained with <code>System.nanoTime</code>
+     * @param name name of the histogram
+     * @param startNanos start of the operation
+     */
+    public void recordSince(String name, long startNanos) {
+        record(name, (System.nanoTime() - startNanos) / 1000);
+    }
+
+    /**
+     * @return histograms sorted by name
+     */
+    public synchronized List<Histogram> getHistograms() {
+        return new ArrayList<Histogram>(histograms.values());
+    }
+
+    /**
+     * Removes all the values of the histograms
+     */
+    public synchronized void reset() {
+        for (Histogram histogram : histograms.values())
+            histogram.reset();
+    }
+
+    /**
+     * Writes the summary of each histogram in logcat
+     * @param tag tag of the log messages
+     */
+    public void dump(String tag) {
+        for (Histogram histogram : getHistograms())
+            Log.i(tag, histogram.toString());
+    }
+
+    /**
+     * Writes the summary of each histogram in a text file, one per line
+     * @param file file in which the summaries are written
+     * @param append true to add them to the end of the file, false to overwrite it
+     */
+    public void dump(File file, boolean append) throws IOException {
+        Writer writer = new FileWriter(file, append);
+        try {
+            for (Histogram histogram : getHistograms())
+                writer.write(histogram.toString() + "\n");
+        } finally {
+            writer.close();
+        }
+    }
+}
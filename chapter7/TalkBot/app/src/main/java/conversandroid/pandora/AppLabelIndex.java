@@ -0,0 +1,498 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Index of the apps installed in the device by their label (the name shown to the user), used to find
+ * the app requested in the <launch> tags without loading the labels of all the packages in each request.
+ * Only the apps that can be launched (those with an activity in the launcher) are indexed, so that a label
+ * is never resolved to a package without a launch intent (e.g. a service or a content provider).
+ *
+ * There is a single index per process. It is built in background the first time it is requested, and kept up
+ * to date with the broadcasts sent when packages are added, removed or replaced, or the language of the device
+ * changes. The labels are stored in a file together with the time when each package was last updated, so that
+ * when the app is restarted only the labels of the packages updated meanwhile are loaded again.
+ *
+ * Labels are normalized (lower case, only letters and digits separated by single spaces), and looked up in a
+ * hash table. When there is no exact match, the labels that contain all the words requested and the labels
+ * that differ in a few characters (edit distance) are considered, so that near-miss names recognized by the ASR
+ * (e.g. "maps" for "Google Maps" or "calculater" for "Calculator") are also found.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ */
+public class AppLabelIndex {
+
+    private static final String LOGTAG = "APP_INDEX";
+    private static final String FILE_NAME = "app_labels";
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final int FILE_VERSION = 1;
+
+    private static AppLabelIndex instance = null;
+
+    private final Context ctx;
+    private final File file;
+    private final CountDownLatch built = new CountDownLatch(1);
+    private final ExecutorService executor;     //Builds and updates the index, one task at a time
+
+    //Contents of the index, accessed with the lock of the object
+    private final Map<String, String> packages = new HashMap<String, String>();  //Normalized label -> package
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();     //Package -> label
+    private final Map<String, List<String>> words = new HashMap<String, List<String>>(); //Word -> normalized labels that contain it
+
+    /**
+     * Label of an installed package together with the time when the package was last updated
+     */
+    private static class Entry {
+        final String label;
+        final String normalized;
+        final long lastUpdateTime;
+
+        Entry(String label, long lastUpdateTime) {
+            this.label = label;
+            this.normalized = normalize(label);
+            this.lastUpdateTime = lastUpdateTime;
+        }
+    }
+
+    /**
+     * Returns the index of the apps installed, creating it and starting to build it in background the first time
+     * @param ctx context of the app
+     */
+    public static synchronized AppLabelIndex getInstance(Context ctx) {
+        if (instance == null)
+            instance = new AppLabelIndex(ctx.getApplicationContext());
+        return instance;
+    }
+
+    private AppLabelIndex(Context ctx) {
+        this.ctx = ctx;
+        this.file = new File(ctx.getCacheDir(), FILE_NAME);
+        this.executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "app-label-index");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    build();
+                } catch (RuntimeException e) { //e.g. the package manager has died, the index is left empty
+                    Log.e(LOGTAG, "The index of the apps could not be built: " + e.getMessage());
+                } finally {
+                    built.countDown();
+                }
+            }
+        });
+
+        BroadcastReceiver receiver = new BroadcastReceiver() {
+            @Override
+            public void onReceive(Context context, Intent intent) {
+                onPackageBroadcast(intent);
+            }
+        };
+        IntentFilter packageFilter = new IntentFilter();
+        packageFilter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        packageFilter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        packageFilter.addDataScheme("package");
+        ctx.registerReceiver(receiver, packageFilter);
+        ctx.registerReceiver(receiver, new IntentFilter(Intent.ACTION_LOCALE_CHANGED));
+    }
+
+    /**
+     * Finds the package of the app with a certain label. If the index is still being built, it waits until it is ready
+     * @param label name of the app, e.g. as recognized by the ASR
+     * @return name of the package, or null if there is no app with a similar label
+     */
+    public String findPackage(String label) {
+        try {
+            built.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+
+        String query = normalize(label);
+        if (query.length() == 0)
+            return null;
+
+        synchronized (this) {
+            String packageName = packages.get(query);
+            if (packageName == null) {
+                String similar = findSimilar(query);
+                if (similar != null) {
+                    packageName = packages.get(similar);
+                    Log.d(LOGTAG, "No app named '" + label + "', using '" + similar + "'");
+                }
+            }
+            return packageName;
+        }
+    }
+
+    /**
+     * @return number of apps in the index
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Finds the label most similar to the query: among the labels that contain all its words, the shortest one;
+     * and otherwise the one with the smallest edit distance, if it differs in at most a quarter of the characters
+     */
+    private String findSimilar(String query) {
+        String[] queryWords = query.split(" ");
+
+        String best = null;
+        List<String> candidates = words.get(queryWords[0]);
+        if (candidates != null) {
+            for (String candidate : candidates) {
+                if (containsAll(candidate, queryWords) && (best == null || candidate.length() < best.length()))
+                    best = candidate;
+            }
+        }
+        if (best != null)
+            return best;
+
+        int maxDistance = Math.max(1, query.length() / 4);
+        for (String candidate : packages.keySet()) {
+            if (Math.abs(candidate.length() - query.length()) <= maxDistance) {
+                int distance = editDistance(query, candidate, maxDistance);
+                if (distance <= maxDistance) {
+                    best = candidate;
+                    maxDistance = distance - 1;     //Only better candidates from now on
+                    if (maxDistance < 0)
+                        break;
+                }
+            }
+        }
+        return best;
+    }
+
+    private static boolean containsAll(String label, String[] queryWords) {
+        for (String word : queryWords) {
+            if (!containsWord(label, word))
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean containsWord(String label, String word) {
+        int i = label.indexOf(word);
+        while (i >= 0) {
+            int end = i + word.length();
+            if ((i == 0 || label.charAt(i - 1) == ' ') && (end == label.length() || label.charAt(end) == ' '))
+                return true;
+            i = label.indexOf(word, i + 1);
+        }
+        return false;
+    }
+
+    /**
+     * Levenshtein distance between two strings, or a value greater than max if it is greater than max
+     */
+    static int editDistance(String a, String b, int max) {
+        int[] previous = new int[b.length() + 1];
+        int[] current = new int[b.length() + 1];
+        for (int j = 0; j <= b.length(); j++)
+            previous[j] = j;
+
+        for (int i = 1; i <= a.length(); i++) {
+            current[0] = i;
+            int rowMin = i;
+            for (int j = 1; j <= b.length(); j++) {
+                int cost = a.charAt(i - 1) == b.charAt(j - 1) ? 0 : 1;
+                current[j] = Math.min(Math.min(current[j - 1] + 1, previous[j] + 1), previous[j - 1] + cost);
+                rowMin = Math.min(rowMin, current[j]);
+            }
+            if (rowMin > max)
+                return max + 1;     //The distance can only grow in the next rows
+            int[] aux = previous;
+            previous = current;
+            current = aux;
+        }
+        return previous[b.length()];
+    }
+
+    /**
+     * Normalizes a label: lower case, and only letters and digits, with the rest of the characters
+     * replaced by single spaces between words
+     */
+    static String normalize(String label) {
+        StringBuilder normalized = new StringBuilder(label.length());
+        boolean space = false;
+        for (int i = 0; i < label.length(); i++) {
+            char c = label.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                if (space && normalized.length() > 0)
+                    normalized.append(' ');
+                space = false;
+                normalized.append(Character.toLowerCase(c));
+            } else {
+                space = true;
+            }
+        }
+        return normalized.toString();
+    }
+
+    /**
+     * Loads the labels of the installed packages, reusing the ones stored in the file for the packages that
+     * have not been updated since it was written
+     */
+    private void build() {
+        long start = System.currentTimeMillis();
+        Map<String, Entry> stored = load();
+        PackageManager pm = ctx.getPackageManager();
+        List<PackageInfo> installed = pm.getInstalledPackages(0);
+        Set<String> launchable = new HashSet<String>();
+        Intent launcher = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER);
+        for (ResolveInfo info : pm.queryIntentActivities(launcher, 0))
+            launchable.add(info.activityInfo.packageName);
+
+        int loaded = 0;
+        Map<String, Entry> current = new HashMap<String, Entry>(launchable.size() * 2);
+        for (PackageInfo info : installed) {
+            if (!launchable.contains(info.packageName))
+                continue;
+            Entry entry = stored.get(info.packageName);
+            if (entry == null || entry.lastUpdateTime != info.lastUpdateTime) {
+                entry = new Entry(info.applicationInfo.loadLabel(pm).toString(), info.lastUpdateTime);
+                loaded++;
+            }
+            current.put(info.packageName, entry);
+        }
+
+        synchronized (this) {
+            entries.clear();
+            packages.clear();
+            words.clear();
+            for (Map.Entry<String, Entry> e : current.entrySet())
+                add(e.getKey(), e.getValue());
+        }
+        Log.d(LOGTAG, "Indexed " + current.size() + " apps (" + loaded + " labels loaded) in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        if (loaded > 0 || current.size() != stored.size())
+            save();
+    }
+
+    /**
+     * Updates the index when a package is added, removed or replaced, or rebuilds it if the language has changed
+     */
+    private void onPackageBroadcast(final Intent intent) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                String action = intent.getAction();
+                if (Intent.ACTION_LOCALE_CHANGED.equals(action)) {
+                    try {
+                        build();
+                    } catch (RuntimeException e) { //The index with the previous labels is kept
+                        Log.e(LOGTAG, "The index of the apps could not be rebuilt: " + e.getMessage());
+                    }
+                    return;
+                }
+
+                String packageName = intent.getData() != null ? intent.getData().getSchemeSpecificPart() : null;
+                if (packageName == null)
+                    return;
+                if (Intent.ACTION_PACKAGE_REMOVED.equals(action)) {
+                    if (!intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {   //If it is replaced, ACTION_PACKAGE_REPLACED follows
+                        synchronized (AppLabelIndex.this) {
+                            remove(packageName);
+                        }
+                        save();
+                    }
+                } else {
+                    try {
+                        PackageManager pm = ctx.getPackageManager();
+                        if (pm.getLaunchIntentForPackage(packageName) == null) { //e.g. its launcher activity was disabled
+                            synchronized (AppLabelIndex.this) {
+                                remove(packageName);
+                            }
+                            save();
+                            return;
+                        }
+                        PackageInfo info = pm.getPackageInfo(packageName, 0);
+                        Entry entry = new Entry(info.applicationInfo.loadLabel(pm).toString(), info.lastUpdateTime);
+                        synchronized (AppLabelIndex.this) {
+                            remove(packageName);
+                            add(packageName, entry);
+                        }
+                        save();
+                    } catch (PackageManager.NameNotFoundException e) {
+                        Log.e(LOGTAG, "Package " + packageName + " not found");
+                    }
+                }
+            }
+        });
+    }
+
+    private void add(String packageName, Entry entry) {
+        entries.put(packageName, entry);
+        if (entry.normalized.length() == 0 || packages.containsKey(entry.normalized))
+            return;     //If several apps have the same label, the first one is used
+        packages.put(entry.normalized, packageName);
+        for (String word : entry.normalized.split(" ")) {
+            List<String> labels = words.get(word);
+            if (labels == null) {
+                labels = new ArrayList<String>(1);
+                words.put(word, labels);
+            }
+            labels.add(entry.normalized);
+        }
+    }
+
+    private void remove(String packageName) {
+        Entry entry = entries.remove(packageName);
+        if (entry == null || !packageName.equals(packages.get(entry.normalized)))
+            return;
+        packages.remove(entry.normalized);
+        for (String word : entry.normalized.split(" ")) {
+            List<String> labels = words.get(word);
+            if (labels != null) {
+                labels.remove(entry.normalized);
+                if (labels.isEmpty())
+                    words.remove(word);
+            }
+        }
+        //Another app with the same label can now be found
+        for (Map.Entry<String, Entry> e : entries.entrySet()) {
+            if (e.getValue().normalized.equals(entry.normalized)) {
+                add(e.getKey(), e.getValue());
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads the labels stored in the file, if it was written with the current language
+     */
+    private Map<String, Entry> load() {
+        Map<String, Entry> stored = new HashMap<String, Entry>();
+        if (!file.exists())
+            return stored;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FILE_VERSION || !in.readUTF().equals(Locale.getDefault().toString()))
+                return stored;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String packageName = in.readUTF();
+                String label = in.readUTF();
+                long lastUpdateTime = in.readLong();
+                stored.put(packageName, new Entry(label, lastUpdateTime));
+            }
+        } catch (IOException e) {
+            Log.e(LOGTAG, "The app labels could not be read from " + file);
+            stored.clear();
+        } finally {
+            close(in);
+        }
+        return stored;
+    }
+
+    /**
+     * Writes the labels in a temporary file that replaces the previous one when it is complete
+     */
+    private void save() {
+        File tmp = new File(file.getPath() + TMP_EXTENSION);
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(Locale.getDefault().toString());
+            synchronized (this) {
+                out.writeInt(entries.size());
+                for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                    out.writeUTF(e.getKey());
+                    out.writeUTF(e.getValue().label);
+                    out.writeLong(e.getValue().lastUpdateTime);
+                }
+            }
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "The app labels could not be written to " + tmp);
+        } finally {
+            close(out);
+        }
+
+        if (written && !tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            Log.e(LOGTAG, "The app labels could not be moved to " + file);
+        if (tmp.exists() && !tmp.delete())
+            Log.e(LOGTAG, "The file " + tmp + " could not be deleted");
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Error closing " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.Manifest;
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageManager;
+import android.location.Criteria;
+import android.location.Location;
+import android.location.LocationListener;
+import android.location.LocationManager;
+import android.os.Bundle;
+import android.os.Looper;
+import android.support.v4.app.ActivityCompat;
+import android.support.v4.content.ContextCompat;
+import android.util.Log;
+import android.widget.Toast;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Location of the device shared by all the <oob> actions that need it (e.g. <map><myloc> or <directions>).
+ *
+ * There is a single tracker per process, which keeps the last fix obtained. When the last fix is recent enough
+ * (see <code>setMaxAge</code>) it is returned immediately; otherwise the tracker waits for a new one. The location
+ * updates are requested only while there is someone waiting for a fix or subscribed with <code>subscribe</code>,
+ * and removed as soon as there is nobody, so that the GPS is not kept on.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ */
+public class LocationTracker {
+
+    private static final String LOGTAG = "LocationTracker";
+    private static final int MY_PERMISSIONS_REQUEST_LOCATION = 50;
+    private static final long MIN_TIME = 2000;      //Milliseconds between updates
+    private static final float MIN_DISTANCE = 10;   //Metres between updates
+
+    private static LocationTracker instance = null;
+
+    private final Context ctx;
+    private final LocationManager locationManager;
+    private final Criteria criteria;
+    private long maxAge = 60000;
+
+    private Location lastFix = null;
+    private int subscribers = 0;
+    private boolean updating = false;
+    private final CopyOnWriteArrayList<LocationListener> listeners = new CopyOnWriteArrayList<LocationListener>();
+
+    // stores the new fixes and forwards them to the subscribers
+    private final LocationListener locationListener = new LocationListener() {
+        public void onLocationChanged(Location location) {
+            updateWithNewLocation(location);
+            for (LocationListener listener : listeners)
+                listener.onLocationChanged(location);
+        }
+        public void onProviderDisabled(String provider) {}
+        public void onProviderEnabled(String provider) {}
+        public void onStatusChanged(String provider, int status, Bundle extras) {}
+    };
+
+    /**
+     * Returns the tracker of the location of the device, creating it the first time
+     * @param ctx context of the app
+     */
+    public static synchronized LocationTracker getInstance(Context ctx) {
+        if (instance == null)
+            instance = new LocationTracker(ctx.getApplicationContext());
+        return instance;
+    }
+
+    private LocationTracker(Context ctx) {
+        this.ctx = ctx;
+        locationManager = (LocationManager) ctx.getSystemService(Context.LOCATION_SERVICE);
+
+        criteria = new Criteria();
+        criteria.setAccuracy(Criteria.ACCURACY_FINE);
+        criteria.setPowerRequirement(Criteria.POWER_LOW);
+        criteria.setAltitudeRequired(false);
+        criteria.setBearingRequired(false);
+        criteria.setSpeedRequired(false);
+        criteria.setCostAllowed(true);
+    }
+
+    /**
+     * Sets the maximum age of the last fix for it to be returned without waiting for a new one
+     * @param maxAge milliseconds
+     */
+    public synchronized void setMaxAge(long maxAge) {
+        this.maxAge = maxAge;
+    }
+
+    /**
+     * Returns the last fix if it is recent enough, or waits for a new one otherwise
+     * @param timeout maximum milliseconds waiting for a new fix
+     * @return location of the device, which is older than the maximum age if there was no new fix
+     * before the timeout, or null if the location is not known
+     */
+    public Location getLocation(long timeout) throws InterruptedException {
+        synchronized (this) {
+            if (!hasPermission())
+                return null;
+            if (lastFix == null)
+                updateWithNewLocation(getLastKnownLocation());
+            if (lastFix != null && age(lastFix) <= maxAge)
+                return lastFix;
+        }
+
+        final CountDownLatch fixed = new CountDownLatch(1);
+        LocationListener listener = new LocationListener() {
+            public void onLocationChanged(Location location) {
+                fixed.countDown();
+            }
+            public void onProviderDisabled(String provider) {}
+            public void onProviderEnabled(String provider) {}
+            public void onStatusChanged(String provider, int status, Bundle extras) {}
+        };
+
+        subscribe(listener);
+        try {
+            if (isUpdating() && !fixed.await(timeout, TimeUnit.MILLISECONDS))
+                Log.d(LOGTAG, "No new fix in " + timeout + " ms");
+        } finally {
+            unsubscribe(listener);
+        }
+        synchronized (this) {
+            return lastFix;
+        }
+    }
+
+    /**
+     * Receives the location updates until <code>unsubscribe</code> is invoked. The updates
+     * are received in the main thread
+     */
+    public synchronized void subscribe(LocationListener listener) {
+        listeners.add(listener);
+        if (subscribers++ == 0)
+            startUpdates();
+    }
+
+    /**
+     * Stops receiving the location updates. When there are no subscribers left, the updates are removed
+     */
+    public synchronized void unsubscribe(LocationListener listener) {
+        if (listeners.remove(listener) && --subscribers == 0)
+            stopUpdates();
+    }
+
+    /**
+     * Checks whether the user has granted permission to access the user's location.
+     * If the permission has not been provided, it is requested. The result of the request
+     * (whether the user finally grants the permission or not) is processed in the
+     * onRequestPermissionsResult method of the activity.
+     *
+     * This is necessary from Android 6 (API level 23), in which users grant permissions to apps
+     * while the app is running. In previous versions, the permissions were granted when installing the app
+     * See: http://developer.android.com/intl/es/training/permissions/requesting.html
+     *
+     * It must be invoked from the main thread
+     *
+     * @return true if the permission is granted
+     */
+    public boolean checkLocationPermission(final Activity activity) {
+        if (hasPermission())
+            return true;
+
+        // If  an explanation is required, show it
+        if (ActivityCompat.shouldShowRequestPermissionRationale(activity, Manifest.permission.ACCESS_FINE_LOCATION)) {
+            activity.runOnUiThread(new Runnable() { //Toasts must be in the main thread
+                public void run() {
+                    Toast.makeText(activity, "TalkBot needs your permission to access your location to provide directions", Toast.LENGTH_SHORT).show();
+                }
+            });
+        }
+
+        // Request the permission.
+        ActivityCompat.requestPermissions(activity, new String[]{Manifest.permission.ACCESS_FINE_LOCATION},
+                MY_PERMISSIONS_REQUEST_LOCATION);
+        return false;
+    }
+
+    private synchronized boolean isUpdating() {
+        return updating;
+    }
+
+    /**
+     * @return true if the user has granted permission to access the location. Unlike
+     * <code>checkLocationPermission</code>, it does not request it, so it can be invoked from any thread
+     */
+    public boolean hasPermission() {
+        return ContextCompat.checkSelfPermission(ctx, Manifest.permission.ACCESS_FINE_LOCATION) == PackageManager.PERMISSION_GRANTED;
+    }
+
+    /**
+     * Requests the location updates from the best provider enabled. They are received in the main
+     * thread, so that the location can be obtained from any thread
+     */
+    private void startUpdates() {
+        String provider = locationManager.getBestProvider(criteria, true);
+        if (provider == null || !hasPermission()) {
+            Log.e(LOGTAG, "No location provider available");
+            return;
+        }
+        // updates restricted to every 2 seconds and only when movement
+        // of more than 10 metres has been detected
+        locationManager.requestLocationUpdates(provider, MIN_TIME, MIN_DISTANCE, locationListener, Looper.getMainLooper());
+        updating = true;
+        Log.d(LOGTAG, "Location updates started with " + provider);
+    }
+
+    private void stopUpdates() {
+        if (updating) {
+            locationManager.removeUpdates(locationListener);
+            updating = false;
+            Log.d(LOGTAG, "Location updates stopped");
+        }
+    }
+
+    /**
+     * Returns the most recent of the last locations known by the providers enabled
+     */
+    private Location getLastKnownLocation() {
+        Location best = null;
+        for (String provider : locationManager.getProviders(true)) {
+            Location location = locationManager.getLastKnownLocation(provider);
+            if (location != null && (best == null || location.getTime() > best.getTime()))
+                best = location;
+        }
+        return best;
+    }
+
+    /**
+     * Keeps a new fix, unless the current one is still recent and it is more accurate and from another provider
+     * (e.g. a GPS fix is kept instead of a newer network fix)
+     */
+    private synchronized void updateWithNewLocation(Location location) {
+        if (location == null)
+            return;
+        boolean newer = lastFix == null || location.getTime() > lastFix.getTime();
+        boolean moreAccurate = lastFix == null || location.getAccuracy() <= lastFix.getAccuracy();
+        boolean sameProvider = lastFix != null && location.getProvider().equals(lastFix.getProvider());
+        if (lastFix == null || age(lastFix) > maxAge || newer && (moreAccurate || sameProvider)) {
+            lastFix = location;
+            Log.d(LOGTAG, "Latitude " + location.getLatitude() + ", longitude " + location.getLongitude()
+                    + ", accuracy " + location.getAccuracy() + " m");
+        }
+    }
+
+    private static long age(Location location) {
+        return System.currentTimeMillis() - location.getTime();
+    }
+}
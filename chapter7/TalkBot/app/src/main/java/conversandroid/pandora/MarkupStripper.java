@@ -0,0 +1,176 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Converts the responses of the bot into plain text to be synthesized: it removes the HTML tags, decodes
+ * the most common entities (e.g. &amp;amp; or &amp;nbsp;) and collapses the whitespace, all in a single pass
+ * over the response. The text is split into sentences later, when it is spoken in chunks (see VoiceActivity).
+ *
+ * The text is written in an array provided by the caller, so that it can be reused for all the responses and
+ * no objects are created for each response.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ */
+public final class MarkupStripper {
+
+    private static final String[] ENTITIES = {"amp", "lt", "gt", "quot", "apos", "nbsp",
+            "ndash", "mdash", "hellip", "lsquo", "rsquo", "ldquo", "rdquo"};
+    private static final char[] DECODED = {'&', '<', '>', '"', '\'', ' ',
+            '\u2013', '\u2014', '\u2026', '\u2018', '\u2019', '\u201C', '\u201D'};
+    private static final int MAX_ENTITY = 10; //Maximum length of an entity between '&' and ';'
+
+    //Tags that separate words, e.g. "one<br/>two" is "one two" but "<b>one</b>two" is "onetwo"
+    private static final String[] BREAK_TAGS = {"br", "p", "div", "li", "ul", "ol", "tr", "td", "h1", "h2", "h3"};
+
+    private MarkupStripper() {
+    }
+
+    /**
+     * Converts a response into plain text
+     * @param input response, which may contain HTML tags and entities
+     * @param out buffer in which the text is written, its length must be at least that of the input
+     * @return length of the text written in <code>out</code>
+     */
+    public static int strip(CharSequence input, char[] out) {
+        int length = input.length();
+        if (out.length < length)
+            throw new IllegalArgumentException("The buffer is too small");
+
+        int n = 0;  //Length of the text written in out
+        boolean space = false;
+
+        int i = 0;
+        while (i < length) {
+            char c = input.charAt(i);
+            if (c == '<') {
+                int end = isTagStart(input, i + 1, length) ? indexOf(input, '>', i + 1, length) : -1;
+                if (end > 0) {
+                    if (isBreakTag(input, i + 1, end))
+                        space = true;
+                    i = end + 1;
+                    continue;
+                }
+                i++; //Not a tag, the '<' is kept
+            } else if (c == '&') {
+                int end = indexOf(input, ';', i + 1, Math.min(length, i + MAX_ENTITY + 2));
+                int decoded = end > 0 ? decodeEntity(input, i + 1, end) : -1;
+                if (decoded >= 0) {
+                    c = (char) decoded;
+                    i = end + 1;
+                } else {
+                    i++; //Not an entity, the '&' is kept
+                }
+            } else {
+                i++;
+            }
+
+            if (isSpace(c)) {
+                space = true;
+            } else {
+                if (space && n > 0)
+                    out[n++] = ' ';
+                space = false;
+                out[n++] = c;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Decodes an entity
+     * @param s text that contains the entity
+     * @param start position after the '&amp;'
+     * @param end position of the ';'
+     * @return character decoded, or -1 if it is not a known entity
+     */
+    public static int decodeEntity(CharSequence s, int start, int end) {
+        if (end - start >= 2 && s.charAt(start) == '#') {
+            boolean hex = s.charAt(start + 1) == 'x' || s.charAt(start + 1) == 'X';
+            int value = 0;
+            int first = hex ? start + 2 : start + 1;
+            if (first == end)
+                return -1;
+            for (int i = first; i < end; i++) {
+                int digit = Character.digit(s.charAt(i), hex ? 16 : 10);
+                if (digit < 0)
+                    return -1;
+                value = value * (hex ? 16 : 10) + digit;
+                if (value > Character.MAX_VALUE)
+                    return -1;
+            }
+            return value > 0 ? value : -1;
+        }
+
+        for (int k = 0; k < ENTITIES.length; k++) {
+            if (regionEquals(s, start, end, ENTITIES[k]))
+                return DECODED[k];
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(char c) {
+        return c <= ' ' || c == '\u00A0' || c > 127 && Character.isWhitespace(c);
+    }
+
+    /**
+     * Checks whether a '&lt;' starts a tag, i.e. it is followed by a letter, '/' or '!' (e.g. not in "x &lt; 5")
+     */
+    private static boolean isTagStart(CharSequence s, int i, int length) {
+        if (i >= length)
+            return false;
+        char c = s.charAt(i);
+        return c == '/' || c == '!' || Character.isLetter(c);
+    }
+
+    private static boolean isBreakTag(CharSequence s, int start, int end) {
+        if (start < end && s.charAt(start) == '/')
+            start++;
+        int nameEnd = start;
+        while (nameEnd < end && Character.isLetterOrDigit(s.charAt(nameEnd)))
+            nameEnd++;
+        for (String tag : BREAK_TAGS) {
+            if (regionEquals(s, start, nameEnd, tag))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean regionEquals(CharSequence s, int start, int end, String name) {
+        if (end - start != name.length())
+            return false;
+        for (int i = 0; i < name.length(); i++) {
+            if (Character.toLowerCase(s.charAt(start + i)) != name.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private static int indexOf(CharSequence s, char c, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,75 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Intent;
+
+
+/**
+ * Result of an <code>OobHandler</code>: a message to be synthesized and/or an intent to be started
+ * (e.g. to show a map or launch an app). Both are carried out in the main thread by the
+ * <code>PandoraResultProcessor</code> as soon as the handler that created the action finishes.
+ *
+ * The text of the response outside the <oob> tags is synthesized by the processor before the actions are ready,
+ * so the message of an action is only for additional information (e.g. the battery level). When an action fails,
+ * the message should explain the failure.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ */
+public class OobAction {
+
+    private final String textToSpeak;
+    private final Intent intent;
+    private final boolean failed;
+
+    /**
+     * @param textToSpeak message to be synthesized after the text of the response, it can be null
+     * @param intent intent to be started, it can be null
+     */
+    public OobAction(String textToSpeak, Intent intent) {
+        this(textToSpeak, intent, false);
+    }
+
+    /**
+     * @param textToSpeak message to be synthesized, it can be null
+     * @param intent intent to be started, it can be null
+     * @param failed true if the action could not be carried out
+     */
+    public OobAction(String textToSpeak, Intent intent, boolean failed) {
+        this.textToSpeak = textToSpeak;
+        this.intent = intent;
+        this.failed = failed;
+    }
+
+    public String getTextToSpeak() {
+        return textToSpeak;
+    }
+
+    public Intent getIntent() {
+        return intent;
+    }
+
+    public boolean isFailed() {
+        return failed;
+    }
+}
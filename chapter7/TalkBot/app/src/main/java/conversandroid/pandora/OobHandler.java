@@ -0,0 +1,52 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.content.Context;
+
+
+/**
+ * Action carried out for a tag of the <oob> content of the bot responses (e.g. <map> or <launch>).
+ * Handlers are registered in a <code>PandoraResultProcessor</code> with the name of the tag they process,
+ * so that new actions can be added to the bot without modifying the processor.
+ *
+ * The handlers are invoked in a background thread, so they can carry out slow operations such as looking up
+ * the installed apps or the location of the device, but they must not modify the user interface. Instead,
+ * they return an <code>OobAction</code> with the message to be synthesized and the intent to be started. The handlers
+ * of all the tags of a response run in parallel while the processor synthesizes the text of the response, and each
+ * action is carried out in the main thread as soon as its handler finishes.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.1, 05/16/16
+ */
+public interface OobHandler {
+
+    /**
+     * Processes an element of the <oob> content
+     * @param element element with the name of the tag handled, its text and its nested elements
+     * @param textToSpeak text of the response outside the <oob> tags, which is synthesized by the processor
+     * @param ctx context of the app
+     * @return action to be carried out in the main thread, or null if there is nothing left to do
+     * @throws Exception when the action cannot be carried out
+     */
+    OobAction handle(PandoraOobParser.Element element, String textToSpeak, Context ctx) throws Exception;
+}
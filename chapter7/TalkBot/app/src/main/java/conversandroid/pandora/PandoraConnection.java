@@ -21,18 +21,57 @@ package conversandroid.pandora;
  *   along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 
-import android.os.StrictMode;
 import android.util.Log;
 
-import org.apache.http.client.fluent.Content;
+import org.apache.http.Consts;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
+import org.apache.http.client.ClientProtocolException;
+import org.apache.http.client.HttpResponseException;
+import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.fluent.Executor;
 import org.apache.http.client.fluent.Request;
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLContexts;
+import org.apache.http.entity.ContentType;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.NoRouteToHostException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLHandshakeException;
+
+import conversandroid.aiml.AimlBot;
+import conversandroid.metrics.MetricsRegistry;
 
 //>> Check the build.gradle file to see how apache http client libraries are considered for compilation
 
@@ -44,6 +83,20 @@ import java.net.URISyntaxException;
  * However, significant edition has been performed to adapt it to Android and simplify
  * the methods used.
  *
+ * All the connections share a single pooled HTTP client that keeps connections alive and
+ * reuses the TLS sessions, so that consecutive turns do not pay a new TCP and TLS handshake.
+ * Queries can be sent asynchronously with <code>talkAsync</code>, which runs them on a small
+ * bounded pool of I/O threads instead of blocking the thread that invokes it.
+ * <code>warmUp</code> opens the connection in advance, so that the first query is not slower than the rest.
+ * Concurrent queries with the same input share a single request to the service.
+ * A <code>PandoraSpeculator</code> can send the partial recognition results before the user finishes speaking.
+ * Optionally, a <code>PandoraResilience</code> may be set to retry or hedge the requests and
+ * to stop connecting to the service while it is not available.
+ * An <code>AimlBot</code> with the AIML files of the bot can answer on the device when the
+ * service cannot be reached, or before connecting to it.
+ * If a <code>MetricsRegistry</code> is set, the duration of each phase of the requests is recorded
+ * in it (see <code>PandoraTimer</code>).
+ *
  * @author Michael McTear, Zoraida Callejas and David Griol
  * @version 4.0, 02/13/16
  *
@@ -52,16 +105,53 @@ public class PandoraConnection {
 
     private static final String LOGTAG = "PANDORA_CONNECT";
 
+    private static final int MAX_CONNECTIONS = 4;           //Connections kept in the pool for the Pandora host
+    private static final int CONNECT_TIMEOUT = 10000;       //Milliseconds to establish a connection
+    private static final int SOCKET_TIMEOUT = 15000;        //Milliseconds waiting for data from the server
+    private static final int TLS_SESSION_TIMEOUT = 3600;    //Seconds a TLS session is cached to be resumed
+    private static final int IO_THREADS = 2;                //Threads used to send asynchronous queries
+    private static final int IO_QUEUE_SIZE = 16;            //Asynchronous queries waiting for a thread
+
+    private static Executor httpExecutor = null;
+    private static ExecutorService ioExecutor = null;
+
+    //Each I/O thread reuses its own decoder (and its buffers) for all the responses
+    private static final ThreadLocal<PandoraResponseDecoder> decoders = new ThreadLocal<PandoraResponseDecoder>() {
+        @Override
+        protected PandoraResponseDecoder initialValue() {
+            return new PandoraResponseDecoder();
+        }
+    };
+
     private String host;
     private String userKey;
     private String appId;
     private String botName;
+    private PandoraResponseCache cache = null;
+    private PandoraResilience resilience = null;
+    private MetricsRegistry metrics = null;
+
+    /**
+     * How the local AIML interpreter is used
+     */
+    public enum LocalMode {
+        FALLBACK, //Only when the service cannot be reached
+        LOCAL_FIRST //For all the inputs, the service is used only when the local bot has no answer
+    }
+
+    private volatile AimlBot localBot = null;
+    private volatile LocalMode localMode = LocalMode.FALLBACK;
+    private volatile boolean online = true;
+
+    //Requests being sent to the service, indexed by bot name and input
+    private final ConcurrentHashMap<String, FutureTask<String>> pendingRequests = new ConcurrentHashMap<String, FutureTask<String>>();
 
     /**
      * Constructor that initializes the connection parameters
      *
      * @param host
-     *            host name of pandorabots API server
+     *            host name of pandorabots API server. HTTPS is used unless the
+     *            scheme is indicated (e.g. "http://10.0.2.2:8080" for a local server)
      * @param appId
      *            app_id to pandorabots API
      * @param userKey
@@ -77,10 +167,163 @@ public class PandoraConnection {
     }
 
 
+    /**
+     * @return name of the bot
+     */
+    String getBotName() {
+        return botName;
+    }
+
+    /**
+     * Sets a cache in which the responses of the bot are kept, so that repeated queries
+     * are answered without connecting to the service
+     * @param cache cache of responses, or null to disable caching
+     */
+    public void setCache(PandoraResponseCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * @return cache of responses, or null if there is no cache
+     */
+    public PandoraResponseCache getCache() {
+        return cache;
+    }
+
+    /**
+     * Sets the retry, hedging and circuit breaker policies applied to the requests
+     * @param resilience policies, or null to send each request only once
+     */
+    public void setResilience(PandoraResilience resilience) {
+        this.resilience = resilience;
+    }
+
+    /**
+     * Sets the registry in which the duration of the phases of each request is recorded
+     * @param metrics registry, or null to disable the measurement
+     */
+    public void setMetrics(MetricsRegistry metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Sets an AIML interpreter that answers on the device, either when the service cannot be reached
+     * or before trying the service
+     * @param localBot local interpreter with the AIML files of the bot, or null to use only the service
+     * @param mode whether the local bot is used as a fallback or before connecting to the service
+     */
+    public void setLocalBot(AimlBot localBot, LocalMode mode) {
+        this.localBot = localBot;
+        this.localMode = mode;
+    }
+
+    /**
+     * @return local AIML interpreter, or null if there is none
+     */
+    public AimlBot getLocalBot() {
+        return localBot;
+    }
+
+    /**
+     * Indicates whether the device is connected to Internet. When it is not, only the local bot is used
+     */
+    public void setOnline(boolean online) {
+        this.online = online;
+    }
+
+    /**
+     * Prepares the connection in a background thread before the first query, so that it does not
+     * have to pay the DNS resolution, the TCP connection and the TLS handshake: it resolves the host and
+     * sends a HEAD request to the service, which opens a connection that is kept alive in the pool.
+     * Optionally, it also sends a priming query so that the service loads the bot.
+     *
+     * Note that the priming query is a real query to the bot (its response is cached as the rest),
+     * so it should be an input that does not change the state of the conversation, e.g. "hello"
+     *
+     * @param primingInput text sent to the bot after opening the connection, or null to send no query
+     * @return future that finishes when the connection is ready (errors are only logged)
+     */
+    public Future<?> warmUp(final String primingInput) {
+        try {
+            return getIoExecutor().submit(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.nanoTime();
+                    try {
+                        URI uri = new URI(server() + "/talk/" + appId + "/" + botName);
+                        InetAddress.getAllByName(uri.getHost()); //The resolution is cached for the following requests
+                        getHttpExecutor().execute(Request.Head(uri)).discardContent(); //Any status is valid, only the connection is used
+                        if (primingInput != null)
+                            talkRemotely(primingInput, true); //Errors are not replaced by the fallback answer
+                        Log.d(LOGTAG, "Connection warmed up in " + (System.nanoTime() - start) / 1000000 + " ms");
+                    } catch (Exception e) {
+                        Log.e(LOGTAG, "The connection could not be warmed up: " + e.getMessage());
+                    } finally {
+                        MetricsRegistry registry = metrics;
+                        if (registry != null)
+                            registry.recordSince("pandora.warmup", start);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(LOGTAG, "Too many pending requests to pandorabot, the connection is not warmed up");
+            FutureTask<Void> skipped = new FutureTask<Void>(new Runnable() {
+                @Override
+                public void run() { }
+            }, null);
+            skipped.run();
+            return skipped;
+        }
+    }
+
+    /**
+     * Sends the user message to the chatbot in a background thread and returns immediately.
+     * When the response is available (or an error occurs) the listener is invoked
+     * from the background thread, so any change in the GUI must be done with <code>runOnUiThread</code>
+     *
+     * @param input text for conversation
+     * @param listener receives the bot's response or the error, it can be null
+     * @return future that holds the text of the bot's response
+     */
+    public Future<String> talkAsync(final String input, final PandoraListener listener) {
+        try {
+            return getIoExecutor().submit(new Callable<String>() {
+                @Override
+                public String call() throws PandoraException {
+                    try {
+                        String response = talk(input);
+                        if (listener != null)
+                            listener.onBotResponse(response);
+                        return response;
+                    } catch (PandoraException e) {
+                        if (listener != null)
+                            listener.onBotError(e);
+                        throw e;
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.e(LOGTAG, "Too many pending requests to pandorabot");
+            final PandoraException error = new PandoraException(PandoraErrorCode.CONNECTION);
+            if (listener != null)
+                listener.onBotError(error);
+            FutureTask<String> failed = new FutureTask<String>(new Callable<String>() {
+                @Override
+                public String call() throws PandoraException {
+                    throw error;
+                }
+            });
+            failed.run();
+            return failed;
+        }
+    }
+
     /**
      * Sends the user message to the chatbot and returns the chatbot response
      * It is a simplification and adaptation to Android of the method with the same name in the
      * Pandorabots Java API: https://github.com/pandorabots/pb-java
+     * It blocks until the response is received, so it must not be invoked from the main thread
+     * (use <code>talkAsync</code> instead)
      * @param input text for conversation
      * @return text of bot's response
      * @throws PandoraException when the connection is not succesful
@@ -88,12 +331,126 @@ public class PandoraConnection {
 
     public String talk(String input) throws PandoraException {
 
-        String responses = "";
+        AimlBot bot = localBot;
+        boolean localFallback = bot != null && localMode == LocalMode.FALLBACK;
+        boolean unavailable = !online || (resilience != null && resilience.isCircuitOpen());
+        boolean triedLocally = false;
+        if (bot != null && (localMode == LocalMode.LOCAL_FIRST || unavailable)) {
+            String response = talkLocally(bot, input);
+            if (response != null)
+                return response;
+            if (!online) {
+                Log.e(LOGTAG, "Match failed");
+                throw new PandoraException(PandoraErrorCode.NOMATCH);
+            }
+            triedLocally = true;
+        }
+
+        try {
+            return talkRemotely(input, localFallback);
+        } catch (PandoraException e) {
+            PandoraErrorCode code = e.getErrorCode();
+            if (localFallback && (code == PandoraErrorCode.CONNECTION || code == PandoraErrorCode.IDORHOST)) {
+                if (!triedLocally) {
+                    String response = talkLocally(bot, input);
+                    if (response != null)
+                        return response;
+                }
+                //The fallback answer of the resilience policies is the last resort
+                if (resilience != null)
+                    return resilience.fallbackAfterLocal(e);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Answers with the local AIML interpreter
+     * @return text of bot's response, or null if there is no answer for the input
+     */
+    private String talkLocally(AimlBot bot, String input) {
+        String response = bot.respond(input);
+        if (response == null || response.length() == 0)
+            return null;
+        Log.d(LOGTAG, "Bot response (local):" + response);
+        return response;
+    }
+
+    /**
+     * Sends the user message to the Pandorabots service (or takes the response from the cache)
+     * @param localFallback true if the local bot answers when the host cannot be reached
+     */
+    private String talkRemotely(final String input, final boolean localFallback) throws PandoraException {
+
+        if (cache != null) {
+            String cached = cache.get(botName, input);
+            if (cached != null) {
+                Log.d(LOGTAG, "Bot response (from cache):" + cached);
+                return cached;
+            }
+        }
+
+        //If the same query is already being sent, wait for its response instead of sending it again
+        String key = PandoraResponseCache.key(botName, input);
+        FutureTask<String> request = new FutureTask<String>(new Callable<String>() {
+            @Override
+            public String call() throws PandoraException {
+                if (resilience == null)
+                    return request(input);
+                return resilience.execute(new Callable<String>() {
+                    @Override
+                    public String call() throws PandoraException {
+                        return request(input);
+                    }
+                }, localFallback);
+            }
+        });
+        FutureTask<String> inFlight;
+        while (true) {
+            inFlight = pendingRequests.putIfAbsent(key, request);
+            //A request that has already finished (but not yet been removed) is replaced, so that its result is not reused
+            if (inFlight == null || (inFlight.isDone() && pendingRequests.replace(key, inFlight, request))) {
+                try {
+                    request.run();
+                } finally {
+                    pendingRequests.remove(key, request);
+                }
+                inFlight = request;
+                break;
+            }
+            if (!inFlight.isDone()) {
+                Log.d(LOGTAG, "Waiting for the pending request: Botname=" + botName + ", input=\"" + input + "\"");
+                break;
+            }
+        }
+
+        try {
+            return inFlight.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof PandoraException)
+                throw (PandoraException) e.getCause();
+            throw new PandoraException(PandoraErrorCode.UNKNOWN);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PandoraException(PandoraErrorCode.CONNECTION);
+        }
+    }
+
+    /**
+     * Sends the query to the Pandorabots service and parses its response
+     * @param input text for conversation
+     * @return text of bot's response
+     * @throws PandoraException when the connection is not succesful
+     */
+    private String request(String input) throws PandoraException {
+
+        String query = input;
+        String responses;
         input = input.replace(" ", "%20");
 
         URI uri = null;
         try {
-            uri = new URI("https://"+host+"/talk/"+appId+"/"+botName+"?input="+input+"&user_key="+userKey);
+            uri = new URI(server()+"/talk/"+appId+"/"+botName+"?input="+input+"&user_key="+userKey);
             Log.d(LOGTAG, "Request to pandorabot: Botname=" + botName + ", input=\"" + input + "\"" + " uri="+ uri);
         } catch (URISyntaxException e) {
             Log.e(LOGTAG, e.getMessage());
@@ -101,41 +458,159 @@ public class PandoraConnection {
         }
 
 
-        int SDK_INT = android.os.Build.VERSION.SDK_INT;
-        if (SDK_INT > 8)
-        {
-            StrictMode.ThreadPolicy policy = new StrictMode.ThreadPolicy.Builder()
-                    .permitAll().build();
-            StrictMode.setThreadPolicy(policy); //Why the strictmode: http://stackoverflow.com/questions/25093546/android-os-networkonmainthreadexception-at-android-os-strictmodeandroidblockgua
+        MetricsRegistry registry = metrics;
+        PandoraTimer timer = (registry != null) ? PandoraTimer.start() : null;
+        try {
+            DecodingHandler handler = new DecodingHandler(decoders.get(), timer);
+            responses = getHttpExecutor().execute(Request.Post(uri)).handleResponse(handler);
+            if (handler.error != null)
+                throw handler.error;
+            if (handler.decoder.isMatchFailed()) {
+                Log.e(LOGTAG, "Match failed");
+                throw new PandoraException(PandoraErrorCode.NOMATCH);
+            }
+        } catch (PandoraException e) {
+            throw e;
+        } catch (IOException e) {
+            Log.e(LOGTAG, e.getMessage());
+            throw new PandoraException(PandoraErrorCode.CONNECTION, !isConnectError(e));
+        } catch (Exception e){
+            throw new PandoraException(PandoraErrorCode.IDORHOST);
+        } finally {
+            if (timer != null) {
+                timer.stop();
+                timer.record(registry);
+            }
+        }
+
+        Log.d(LOGTAG, "Bot response:" + responses);
+
+        if (cache != null)
+            cache.put(botName, query, responses);
 
+        return responses;
+    }
+
+
+    /**
+     * @return true if the error happened before the request was sent: the host could not be resolved,
+     * the connection could not be established or the TLS handshake failed
+     */
+    private static boolean isConnectError(IOException e) {
+        return e instanceof UnknownHostException || e instanceof ConnectException
+                || e instanceof ConnectTimeoutException || e instanceof NoRouteToHostException
+                || e instanceof SSLHandshakeException;
+    }
+
+    /**
+     * @return URL of the server, HTTPS is used unless the host indicates the scheme
+     */
+    private String server() {
+        return host.contains("://") ? host : "https://" + host;
+    }
+
+    /**
+     * Reads the body of the HTTP response with a <code>PandoraResponseDecoder</code> while it is
+     * received, instead of storing it completely in a string before parsing it.
+     * As the handler can only throw IOExceptions, parsing errors are kept in <code>error</code>
+     */
+    private static class DecodingHandler implements ResponseHandler<String> {
+        final PandoraResponseDecoder decoder;
+        final PandoraTimer timer; //Null if the request is not timed
+        PandoraException error = null;
+
+        DecodingHandler(PandoraResponseDecoder decoder, PandoraTimer timer) {
+            this.decoder = decoder;
+            this.timer = timer;
+        }
+
+        @Override
+        public String handleResponse(HttpResponse response) throws IOException {
+            if (timer != null)
+                timer.responseReceived();
+            StatusLine status = response.getStatusLine();
+            if (status.getStatusCode() >= 300)
+                throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+
+            HttpEntity entity = response.getEntity();
+            if (entity == null)
+                throw new ClientProtocolException("Response without content");
+
+            Charset charset = ContentType.getOrDefault(entity).getCharset();
+            Reader reader = new InputStreamReader(PandoraTimer.timeReads(entity.getContent()), charset != null ? charset : Consts.UTF_8);
+            long start = System.nanoTime();
             try {
-                Content content = Request.Post(uri).execute().returnContent();
-                String response = content.asString();
-                JSONObject jObj = new JSONObject(response);
-                JSONArray jArray = jObj.getJSONArray("responses");
-                for (int i = 0; i < jArray.length(); i++) {
-                    responses += jArray.getString(i).trim();
-                }
-            } catch (JSONException e) {
-                Log.e(LOGTAG, e.getMessage());
-                throw new PandoraException(PandoraErrorCode.PARSE);
-            } catch (IOException e) {
-                Log.e(LOGTAG, e.getMessage());
-                throw new PandoraException(PandoraErrorCode.CONNECTION);
-            } catch (Exception e){
-                throw new PandoraException(PandoraErrorCode.IDORHOST);
+                String decoded = decoder.decode(reader);
+                if (timer != null)
+                    timer.decoded(start);
+                return decoded;
+            } catch (PandoraException e) {
+                Log.e(LOGTAG, "The response could not be parsed");
+                error = e;
+                return null;
+            } finally {
+                reader.close();
             }
-
         }
+    }
+
+    /**
+     * Returns the HTTP executor shared by all the connections, creating it the first time.
+     * Its pool keeps the connections to the host alive between requests (for as long as the
+     * server allows it with its Keep-Alive header), and its SSL context
+     * caches the TLS sessions so that they can be resumed when a new connection is opened.
+     * Its DNS resolver and socket factories measure the phases of the requests that are being timed.
+     */
+    private static synchronized Executor getHttpExecutor() {
+        if (httpExecutor == null) {
+            SSLContext sslContext = SSLContexts.createDefault();
+            sslContext.getClientSessionContext().setSessionTimeout(TLS_SESSION_TIMEOUT);
+
+            Registry<ConnectionSocketFactory> socketFactories = RegistryBuilder.<ConnectionSocketFactory>create()
+                    .register("http", new PandoraTimer.TimedSocketFactory(PlainConnectionSocketFactory.getSocketFactory(), null))
+                    .register("https", new PandoraTimer.TimedSocketFactory(PlainConnectionSocketFactory.getSocketFactory(),
+                            new SSLConnectionSocketFactory(sslContext)))
+                    .build();
+
+            PoolingHttpClientConnectionManager pool = new PoolingHttpClientConnectionManager(socketFactories,
+                    new PandoraTimer.TimedDnsResolver());
+            pool.setMaxTotal(MAX_CONNECTIONS);
+            pool.setDefaultMaxPerRoute(MAX_CONNECTIONS);
 
-        if(responses.toLowerCase().contains("match failed")) {
-            Log.e(LOGTAG, "Match failed");
-            throw new PandoraException(PandoraErrorCode.NOMATCH);
+            RequestConfig config = RequestConfig.custom()
+                    .setConnectTimeout(CONNECT_TIMEOUT)
+                    .setSocketTimeout(SOCKET_TIMEOUT)
+                    .build();
+
+            httpExecutor = Executor.newInstance(HttpClientBuilder.create()
+                    .setConnectionManager(pool)
+                    .setDefaultRequestConfig(config)
+                    .build());
         }
+        return httpExecutor;
+    }
 
-        Log.d(LOGTAG, "Bot response:" + responses);
+    /**
+     * Returns the pool of threads shared by all the connections to send asynchronous queries,
+     * creating it the first time. Both the number of threads and the number of pending queries are bounded,
+     * and the threads are released when they are idle.
+     */
+    private static synchronized ExecutorService getIoExecutor() {
+        if (ioExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(IO_THREADS, IO_THREADS, 30, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(IO_QUEUE_SIZE), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
 
-        return responses;
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "pandora-io-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+            ioExecutor = executor;
+        }
+        return ioExecutor;
     }
 }
-
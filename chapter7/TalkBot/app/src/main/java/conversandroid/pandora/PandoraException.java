@@ -35,9 +35,20 @@ package conversandroid.pandora;
 public class PandoraException extends Exception {
 
     private PandoraErrorCode errorCode=PandoraErrorCode.UNKNOWN;
+    private final boolean requestSent;
 
     PandoraException(PandoraErrorCode c){
+        this(c, true);
+    }
+
+    /**
+     * @param c error code
+     * @param requestSent false only if it is certain that the request did not reach the service
+     *                    (e.g. the host could not be resolved or the connection was refused)
+     */
+    PandoraException(PandoraErrorCode c, boolean requestSent){
         setErrorCode(c);
+        this.requestSent = requestSent;
     }
 
     public void setErrorCode(PandoraErrorCode code){
@@ -47,6 +58,13 @@ public class PandoraException extends Exception {
     public PandoraErrorCode getErrorCode(){
         return errorCode;
     }
+
+    /**
+     * @return true if the request may have been processed by the service, so sending it again could repeat the turn
+     */
+    public boolean isRequestSent(){
+        return requestSent;
+    }
 }
 
 
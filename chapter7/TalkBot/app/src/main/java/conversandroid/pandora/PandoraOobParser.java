@@ -0,0 +1,307 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Single-pass parser of the responses of the bot, which separates the text to be spoken from the
+ * content of the &lt;oob&gt; tags, e.g.:
+ * Here's a map of Granada &lt;oob&gt;&lt;map&gt;Granada&lt;/map&gt;&lt;/oob&gt;
+ *
+ * The response is scanned once, character by character: the text outside the &lt;oob&gt; tags is copied
+ * to the text to be spoken, and the elements inside them are built as a small tree of
+ * <code>Element</code>s (e.g. map, search, launch, battery, directions), whose text has the XML entities decoded.
+ * A response may contain several &lt;oob&gt; tags, and each of them several elements. Malformed markup
+ * (e.g. tags that are not closed) is tolerated instead of discarding the whole response.
+ *
+ * The parser reuses its buffers from one response to the next, so an instance must not be
+ * shared by several threads at the same time.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraOobParser {
+
+    private static final String OOB_START = "<oob>";
+    private static final String OOB_END = "</oob>";
+
+    private final StringBuilder textToSpeak = new StringBuilder(256);
+    private final List<Element> elements = new ArrayList<Element>();
+    private final List<Element> stack = new ArrayList<Element>();   //Open elements inside the current <oob>
+    private final StringBuilder name = new StringBuilder(16);
+
+    /**
+     * Element inside an &lt;oob&gt; tag
+     */
+    public static class Element {
+        private final String name;
+        private final StringBuilder text = new StringBuilder();
+        private List<Element> children = null;
+
+        Element(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return name of the tag, e.g. "map"
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return text contained in the element and its descendants, with the entities decoded and without spaces at the ends
+         */
+        public String getText() {
+            return text.toString().trim();
+        }
+
+        /**
+         * @return elements directly contained in this one
+         */
+        public List<Element> getChildren() {
+            return children != null ? children : Collections.<Element>emptyList();
+        }
+
+        /**
+         * Finds a descendant of the element
+         * @param name name of the tag, e.g. "myloc"
+         * @return first descendant (in document order) with that name, or null if there is none
+         */
+        public Element find(String name) {
+            if (children != null) {
+                for (Element child : children) {
+                    if (child.name.equals(name))
+                        return child;
+                    Element found = child.find(name);
+                    if (found != null)
+                        return found;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * @return text of the first descendant with the name, or null if there is none
+         */
+        public String findText(String name) {
+            Element found = find(name);
+            return found != null ? found.getText() : null;
+        }
+
+        @Override
+        public String toString() {
+            return "<" + name + ">" + getText() + "</" + name + ">";
+        }
+    }
+
+    /**
+     * Parses a response of the bot
+     * @param output response of the bot
+     * @return true if it contains &lt;oob&gt; tags
+     */
+    public boolean parse(String output) {
+        textToSpeak.setLength(0);
+        elements.clear();
+        boolean oob = false;
+
+        int length = output.length();
+        int i = 0;
+        while (i < length) {
+            char c = output.charAt(i);
+            if (c == '<' && output.startsWith(OOB_START, i)) {
+                oob = true;
+                i = parseOob(output, i + OOB_START.length());
+            } else {
+                textToSpeak.append(c);
+                i++;
+            }
+        }
+        return oob;
+    }
+
+    /**
+     * Parses the content of an &lt;oob&gt; tag (without the tag itself)
+     * @param oobContent content of the tag, e.g. &lt;map&gt;Granada&lt;/map&gt;
+     */
+    public void parseOob(String oobContent) {
+        textToSpeak.setLength(0);
+        elements.clear();
+        parseOob(oobContent, 0);
+    }
+
+    /**
+     * @return text of the response outside the &lt;oob&gt; tags
+     */
+    public String getTextToSpeak() {
+        return textToSpeak.toString();
+    }
+
+    /**
+     * @return elements of the &lt;oob&gt; tags, in the order in which they appear. Nested elements are
+     * available with <code>getChildren</code> or <code>find</code>
+     */
+    public List<Element> getElements() {
+        return elements;
+    }
+
+    /**
+     * Moves the top-level elements that modify another one of the same response inside it, so that their
+     * handlers find them with <code>find</code>. For example, with ("map", "myloc") the response
+     * &lt;map/&gt;&lt;myloc/&gt; is processed as &lt;map&gt;&lt;myloc/&gt;&lt;/map&gt;
+     * @param parentName name of the tag modified, e.g. "map"
+     * @param childName name of the modifier tag, e.g. "myloc"
+     */
+    public void nest(String parentName, String childName) {
+        for (int i = 0; i < elements.size(); i++) {
+            Element child = elements.get(i);
+            if (!child.name.equals(childName))
+                continue;
+            for (Element parent : elements) {
+                if (parent.name.equals(parentName) && parent.find(childName) == null) {
+                    if (parent.children == null)
+                        parent.children = new ArrayList<Element>(2);
+                    parent.children.add(child);
+                    elements.remove(i--);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the content of an &lt;oob&gt; tag from the position indicated until its end tag
+     * @return position after the end tag
+     */
+    private int parseOob(String output, int i) {
+        stack.clear();
+        int length = output.length();
+        while (i < length) {
+            char c = output.charAt(i);
+            if (c == '<') {
+                if (output.startsWith(OOB_END, i))
+                    return i + OOB_END.length();
+                i = parseTag(output, i);
+            } else if (c == '&') {
+                i = parseEntity(output, i);
+            } else {
+                appendText(c);
+                i++;
+            }
+        }
+        return i; //The <oob> tag was not closed
+    }
+
+    /**
+     * Parses a start, end or empty tag inside an &lt;oob&gt;
+     * @param i position of the '&lt;'
+     * @return position after the '&gt;'
+     */
+    private int parseTag(String output, int i) {
+        int length = output.length();
+        int end = output.indexOf('>', i);
+        if (end < 0) {
+            appendText('<'); //Not a tag
+            return i + 1;
+        }
+
+        boolean closing = i + 1 < length && output.charAt(i + 1) == '/';
+        boolean empty = output.charAt(end - 1) == '/';
+        name.setLength(0);
+        for (int j = closing ? i + 2 : i + 1; j < end; j++) {
+            char c = output.charAt(j);
+            if (Character.isWhitespace(c) || c == '/')
+                break;
+            name.append(c);
+        }
+        if (name.length() == 0)
+            return end + 1;
+
+        if (closing) {
+            //Closes the innermost open element with the name (and any element left open inside it)
+            for (int k = stack.size() - 1; k >= 0; k--) {
+                if (contentEquals(stack.get(k).name, name)) {
+                    while (stack.size() > k)
+                        stack.remove(stack.size() - 1);
+                    break;
+                }
+            }
+        } else {
+            Element element = new Element(name.toString());
+            if (stack.isEmpty()) {
+                elements.add(element);
+            } else {
+                Element parent = stack.get(stack.size() - 1);
+                if (parent.children == null)
+                    parent.children = new ArrayList<Element>(2);
+                parent.children.add(element);
+            }
+            if (!empty)
+                stack.add(element);
+        }
+        return end + 1;
+    }
+
+    /**
+     * Decodes an entity (e.g. &amp;amp;) inside an &lt;oob&gt;
+     * @param i position of the '&amp;'
+     * @return position after the ';'
+     */
+    private int parseEntity(String output, int i) {
+        int end = output.indexOf(';', i);
+        if (end < 0 || end - i > 8) {
+            appendText('&');
+            return i + 1;
+        }
+
+        int decoded = MarkupStripper.decodeEntity(output, i + 1, end);
+        if (decoded < 0) { //Unknown entity, it is kept as it is
+            appendText('&');
+            return i + 1;
+        }
+        appendText((char) decoded);
+        return end + 1;
+    }
+
+    /**
+     * Adds a character to the text of all the open elements, as the text of an element includes that of its descendants
+     */
+    private void appendText(char c) {
+        for (int k = 0; k < stack.size(); k++)
+            stack.get(k).text.append(c);
+    }
+
+    private static boolean contentEquals(String s, StringBuilder sb) {
+        if (s.length() != sb.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (s.charAt(i) != sb.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
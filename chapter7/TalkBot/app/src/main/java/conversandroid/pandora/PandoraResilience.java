@@ -0,0 +1,402 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Resilience policies applied to the requests sent by <code>PandoraConnection</code>:
+ *
+ *  - Each <code>PandoraErrorCode</code> has a policy: fail, retry or answer with a fallback message.
+ *    By default, CONNECTION errors are retried with exponential backoff and random jitter, and
+ *    the rest of errors are reported immediately. Only the requests that did not reach the service
+ *    (e.g. the host could not be resolved or the connection was refused) are retried.
+ *  - Optionally, when a request takes longer than the 95th percentile of the latencies observed, a second
+ *    identical request is sent (hedging), and the first response obtained is used.
+ *  - After several consecutive failures to reach the host, the circuit breaker opens and the
+ *    requests fail fast (with the fallback answer, if any) without connecting to the service. After
+ *    a while, a request is allowed to check whether the host is available again.
+ *
+ * The requests to /talk are not idempotent: the bot keeps the predicates and &lt;that&gt; of each client, so a
+ * request processed twice repeats the turn and changes the state of the conversation. This is why the requests
+ * that may have reached the service (e.g. a timeout while waiting for the response) are never retried, and why
+ * hedging is disabled by default: it should only be enabled for bots whose answers do not depend on the state.
+ *
+ * When <code>PandoraConnection</code> has a local bot, the errors to reach the host are reported to it
+ * instead of being replaced by the fallback answer, which is used only if the local bot cannot answer either.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraResilience {
+
+    private static final String LOGTAG = "PANDORA_RESILIENCE";
+
+    /**
+     * What to do when a request fails with a certain error code
+     */
+    public enum Policy {
+        FAIL, //The error is reported
+        RETRY, //The request is sent again
+        FALLBACK //The fallback answer is returned instead of the error (if there is a fallback answer)
+    }
+
+    private enum CircuitState { CLOSED, OPEN, HALF_OPEN }
+
+    private static final int LATENCY_SAMPLES = 64;      //Latencies kept to compute the percentile
+    private static final int MIN_LATENCY_SAMPLES = 20;  //Latencies needed before hedging requests
+    private static final long MIN_HEDGE_DELAY = 100;    //Milliseconds waited at least before hedging a request
+
+    private final EnumMap<PandoraErrorCode, Policy> policies = new EnumMap<PandoraErrorCode, Policy>(PandoraErrorCode.class);
+
+    private int maxRetries = 2;
+    private long baseDelay = 200;
+    private long maxDelay = 2000;
+
+    private boolean hedging = false;
+    private final long[] latencies = new long[LATENCY_SAMPLES];
+    private int numLatencies = 0;
+    private int nextLatency = 0;
+
+    private int failureThreshold = 5;
+    private long openTime = 30000;
+    private CircuitState state = CircuitState.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+
+    private String fallbackAnswer = null;
+
+    private final Random random = new Random();
+    private ThreadPoolExecutor executor = null;
+
+    /**
+     * Creates the resilience policies with the default parameters
+     */
+    public PandoraResilience() {
+        for (PandoraErrorCode code : PandoraErrorCode.values())
+            policies.put(code, Policy.FAIL);
+        policies.put(PandoraErrorCode.CONNECTION, Policy.RETRY);
+    }
+
+    /**
+     * Sets the policy for the requests that fail with a certain error code
+     */
+    public synchronized void setPolicy(PandoraErrorCode code, Policy policy) {
+        policies.put(code, policy);
+    }
+
+    /**
+     * Sets the parameters of the retries, which are only sent for the requests that did not reach the service.
+     * The n-th retry waits a random time between 0 and min(maxDelay, baseDelay*2^n) milliseconds
+     * @param maxRetries maximum number of times that a request is sent again
+     * @param baseDelay milliseconds for the first retry
+     * @param maxDelay maximum milliseconds waited before a retry
+     */
+    public synchronized void setRetries(int maxRetries, long baseDelay, long maxDelay) {
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Sets the parameters of the circuit breaker
+     * @param failureThreshold consecutive failures to reach the host that open the circuit
+     * @param openTime milliseconds during which requests fail fast once the circuit is open
+     */
+    public synchronized void setCircuitBreaker(int failureThreshold, long openTime) {
+        this.failureThreshold = failureThreshold;
+        this.openTime = openTime;
+    }
+
+    /**
+     * Enables or disables sending a second request when the first one is slower than usual. It is disabled by
+     * default, as both requests may be processed by the service and thus the turn would be repeated
+     */
+    public synchronized void setHedging(boolean hedging) {
+        this.hedging = hedging;
+    }
+
+    /**
+     * Sets the answer returned when the circuit is open or the policy for an error is FALLBACK
+     * @param fallbackAnswer text of the answer, or null to report the errors instead
+     */
+    public synchronized void setFallbackAnswer(String fallbackAnswer) {
+        this.fallbackAnswer = fallbackAnswer;
+    }
+
+    /**
+     * Sends the request applying the policies
+     * @param request request to the Pandorabots service
+     * @param localFallback true if the caller answers with a local bot when the host cannot be reached,
+     *                      in which case those errors are thrown instead of returning the fallback answer
+     * @return text of bot's response (or the fallback answer)
+     * @throws PandoraException when the request fails and there is no fallback answer
+     */
+    String execute(Callable<String> request, boolean localFallback) throws PandoraException {
+        int retries = 0;
+        while (true) {
+            if (!allowRequest()) {
+                Log.d(LOGTAG, "Circuit open, the request is not sent");
+                PandoraException e = new PandoraException(PandoraErrorCode.CONNECTION, false);
+                if (localFallback)
+                    throw e;
+                return fallback(e);
+            }
+
+            try {
+                String response = hedge(request);
+                onSuccess();
+                return response;
+            } catch (PandoraException e) {
+                PandoraErrorCode code = e.getErrorCode();
+                if (isHostError(code))
+                    onFailure();
+                else
+                    onSuccess(); //The host could be reached
+
+                Policy policy = getPolicy(code);
+                if (policy == Policy.FALLBACK && !(localFallback && isHostError(code)))
+                    return fallback(e);
+                //A request that may have been processed is not sent again, as it would repeat the turn
+                if (policy != Policy.RETRY || retries >= getMaxRetries() || e.isRequestSent())
+                    throw e;
+
+                long delay = backoff(retries++);
+                Log.d(LOGTAG, "Retrying request after " + code + " error in " + delay + "ms");
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * Sends the request and, if it takes longer than the 95th percentile of the latencies observed,
+     * sends it again. It returns the first response obtained, or the error if both fail
+     */
+    private String hedge(Callable<String> request) throws PandoraException {
+        long start = System.currentTimeMillis();
+        long delay = hedgeDelay();
+        if (delay < 0) {
+            String response = call(request);
+            addLatency(System.currentTimeMillis() - start);
+            return response;
+        }
+
+        ExecutorCompletionService<String> completion = new ExecutorCompletionService<String>(getExecutor());
+        List<Future<String>> requests = new ArrayList<Future<String>>(2);
+        try {
+            requests.add(completion.submit(request));
+            Future<String> done = completion.poll(delay, TimeUnit.MILLISECONDS);
+            if (done == null) {
+                try {
+                    requests.add(completion.submit(request));
+                    Log.d(LOGTAG, "Request slower than " + delay + "ms, sending a hedged request");
+                } catch (RejectedExecutionException e) {
+                    Log.d(LOGTAG, "No thread available for a hedged request");
+                }
+            }
+
+            PandoraException error = null;
+            for (int i = 0; i < requests.size(); i++) {
+                Future<String> result = (done != null) ? done : completion.take();
+                done = null;
+                try {
+                    String response = result.get();
+                    addLatency(System.currentTimeMillis() - start);
+                    return response;
+                } catch (ExecutionException e) {
+                    if (error == null)
+                        error = toPandoraException(e.getCause());
+                }
+            }
+            throw error;
+        } catch (RejectedExecutionException e) {
+            return call(request);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new PandoraException(PandoraErrorCode.CONNECTION);
+        } finally {
+            for (Future<String> f : requests)
+                f.cancel(true);
+        }
+    }
+
+    private String call(Callable<String> request) throws PandoraException {
+        try {
+            return request.call();
+        } catch (Exception e) {
+            throw toPandoraException(e);
+        }
+    }
+
+    private static PandoraException toPandoraException(Throwable t) {
+        if (t instanceof PandoraException)
+            return (PandoraException) t;
+        return new PandoraException(PandoraErrorCode.UNKNOWN);
+    }
+
+    /**
+     * Answers after an error that the local bot could not answer either: the fallback answer is returned
+     * if the circuit is not closed or the policy for the error is FALLBACK, otherwise the error is thrown
+     */
+    String fallbackAfterLocal(PandoraException e) throws PandoraException {
+        if (isCircuitClosed() && getPolicy(e.getErrorCode()) != Policy.FALLBACK)
+            throw e;
+        return fallback(e);
+    }
+
+    private static boolean isHostError(PandoraErrorCode code) {
+        return code == PandoraErrorCode.CONNECTION || code == PandoraErrorCode.IDORHOST;
+    }
+
+    private String fallback(PandoraException e) throws PandoraException {
+        String answer = getFallbackAnswer();
+        if (answer == null)
+            throw e;
+        Log.d(LOGTAG, "Using fallback answer after " + e.getErrorCode() + " error");
+        return answer;
+    }
+
+    /**
+     * Random delay between 0 and min(maxDelay, baseDelay*2^retry) milliseconds ("full jitter")
+     */
+    private synchronized long backoff(int retry) {
+        long max = Math.min(maxDelay, baseDelay << Math.min(retry, 16));
+        return (long) (random.nextDouble() * max);
+    }
+
+    /**
+     * @return milliseconds to wait before hedging a request, or -1 if hedging is not possible yet
+     */
+    private synchronized long hedgeDelay() {
+        if (!hedging || numLatencies < MIN_LATENCY_SAMPLES)
+            return -1;
+        long[] sorted = Arrays.copyOf(latencies, numLatencies);
+        Arrays.sort(sorted);
+        long p95 = sorted[(int) Math.ceil(0.95 * numLatencies) - 1];
+        return Math.max(p95, MIN_HEDGE_DELAY);
+    }
+
+    private synchronized void addLatency(long latency) {
+        latencies[nextLatency] = latency;
+        nextLatency = (nextLatency + 1) % LATENCY_SAMPLES;
+        if (numLatencies < LATENCY_SAMPLES)
+            numLatencies++;
+    }
+
+    /**
+     * Checks whether the circuit breaker lets the request through. When the circuit has been
+     * open for <code>openTime</code>, a single request is allowed to test the host
+     */
+    private synchronized boolean allowRequest() {
+        if (state == CircuitState.CLOSED)
+            return true;
+        if (state == CircuitState.OPEN && System.currentTimeMillis() - openedAt >= openTime) {
+            state = CircuitState.HALF_OPEN;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the circuit breaker is currently rejecting the requests, i.e. the host seems to be down
+     */
+    public synchronized boolean isCircuitOpen() {
+        return state == CircuitState.OPEN && System.currentTimeMillis() - openedAt < openTime;
+    }
+
+    private synchronized boolean isCircuitClosed() {
+        return state == CircuitState.CLOSED;
+    }
+
+    private synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        if (state != CircuitState.CLOSED)
+            Log.d(LOGTAG, "Circuit closed");
+        state = CircuitState.CLOSED;
+    }
+
+    private synchronized void onFailure() {
+        consecutiveFailures++;
+        if (state == CircuitState.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            if (state != CircuitState.OPEN)
+                Log.d(LOGTAG, "Circuit open after " + consecutiveFailures + " consecutive failures");
+            state = CircuitState.OPEN;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    private synchronized Policy getPolicy(PandoraErrorCode code) {
+        return policies.get(code);
+    }
+
+    private synchronized int getMaxRetries() {
+        return maxRetries;
+    }
+
+    private synchronized String getFallbackAnswer() {
+        return fallbackAnswer;
+    }
+
+    /**
+     * Threads used to send the requests when hedging is possible. A request is hedged only
+     * if there is a thread available
+     */
+    private synchronized ThreadPoolExecutor getExecutor() {
+        if (executor == null) {
+            executor = new ThreadPoolExecutor(0, 4, 30, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r, "pandora-hedge-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return executor;
+    }
+}
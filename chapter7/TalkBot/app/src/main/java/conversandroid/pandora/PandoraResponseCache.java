@@ -0,0 +1,326 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * Cache of the responses obtained from Pandorabots, so that the queries that the users repeat
+ * frequently (e.g. "hello") do not require a new round trip to the service.
+ *
+ * Responses are indexed by the bot name and the normalized input (lower case and without extra spaces).
+ * The cache holds at most <code>maxEntries</code> responses, discarding the least recently used ones,
+ * and each response expires <code>timeToLive</code> milliseconds after it was obtained.
+ * Responses whose <oob> content depends on the current state of the device (e.g. <battery> or <myloc>)
+ * are never cached.
+ *
+ * Optionally, the cache can be stored in a file so that it is kept when the app is restarted.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraResponseCache {
+
+    private static final String LOGTAG = "PANDORA_CACHE";
+
+    //Tags of the <oob> content that depend on the live state of the device
+    private static final String[] VOLATILE_TAGS = {"<battery", "<myloc"};
+
+    private static final int FORMAT = 2;                        //Version of the format of the file
+    private static final int MAX_STRING_LENGTH = 1 << 24;       //Longest string accepted when the file is read
+    private static final String TMP_EXTENSION = ".tmp";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int maxEntries;
+    private final long timeToLive;
+    private final File file;
+    private boolean loaded;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    private final LinkedHashMap<String, Entry> entries;
+
+    /**
+     * Response stored in the cache together with the time when it was obtained
+     */
+    private static class Entry {
+        final String response;
+        final long time;
+
+        Entry(String response, long time) {
+            this.response = response;
+            this.time = time;
+        }
+    }
+
+    /**
+     * Creates a cache that is kept only in memory
+     * @param maxEntries maximum number of responses stored
+     * @param timeToLive milliseconds during which a response is valid
+     */
+    public PandoraResponseCache(int maxEntries, long timeToLive) {
+        this(maxEntries, timeToLive, null);
+    }
+
+    /**
+     * Creates a cache that is stored in a file. The file is read the first time the cache is accessed
+     * and written when <code>save</code> is invoked
+     * @param maxEntries maximum number of responses stored
+     * @param timeToLive milliseconds during which a response is valid
+     * @param file file in which the cache is stored, it can be null
+     */
+    public PandoraResponseCache(final int maxEntries, long timeToLive, File file) {
+        this.maxEntries = maxEntries;
+        this.timeToLive = timeToLive;
+        this.file = file;
+        this.loaded = (file == null);
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {  //Access order, so that the eldest entry is the least recently used
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > PandoraResponseCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the response cached for the input, or null if it is not in the cache or it has expired
+     * @param botName name of the bot
+     * @param input text for conversation
+     */
+    public synchronized String get(String botName, String input) {
+        load();
+        String key = key(botName, input);
+        Entry entry = entries.get(key);
+        if (entry != null && System.currentTimeMillis() - entry.time > timeToLive) {
+            entries.remove(key);
+            entry = null;
+        }
+
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.response;
+    }
+
+    /**
+     * Stores the response to the input, unless it depends on the current state of the device
+     * @param botName name of the bot
+     * @param input text for conversation
+     * @param response text of bot's response
+     */
+    public synchronized void put(String botName, String input, String response) {
+        if (!isCacheable(response))
+            return;
+        load();
+        entries.put(key(botName, input), new Entry(response, System.currentTimeMillis()));
+    }
+
+    /**
+     * Removes all the responses from the cache
+     */
+    public synchronized void clear() {
+        entries.clear();
+        loaded = true;
+    }
+
+    /**
+     * @return number of queries answered from the cache
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of queries that were not in the cache
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of responses currently stored
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Checks whether a response can be cached, i.e. its <oob> content does not
+     * depend on the live state of the device
+     */
+    static boolean isCacheable(String response) {
+        if (response == null)
+            return false;
+        int oob = response.indexOf("<oob>");
+        if (oob < 0)
+            return true;
+        for (String tag : VOLATILE_TAGS) {
+            if (response.indexOf(tag, oob) >= 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Builds the key of a query with the bot name and the input in lower case, without
+     * leading, trailing or repeated spaces
+     */
+    static String key(String botName, String input) {
+        StringBuilder key = new StringBuilder(botName.length() + input.length() + 1);
+        key.append(botName).append('/');
+        boolean first = true;
+        boolean space = false;
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = true;
+            } else {
+                if (space && !first)
+                    key.append(' ');
+                first = false;
+                space = false;
+                key.append(c);
+            }
+        }
+        return key.toString().toLowerCase(Locale.US);
+    }
+
+    /**
+     * Reads the responses stored in the file the first time the cache is accessed. Expired responses are discarded
+     */
+    private void load() {
+        if (loaded)
+            return;
+        loaded = true;
+        if (!file.exists())
+            return;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT) {
+                Log.e(LOGTAG, "The cache in " + file + " has an unknown format, it is discarded");
+                return;
+            }
+            int n = in.readInt();
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < n; i++) {
+                String key = readString(in);
+                String response = readString(in);
+                long time = in.readLong();
+                if (now - time <= timeToLive)
+                    entries.put(key, new Entry(response, time));
+            }
+            Log.d(LOGTAG, "Loaded " + entries.size() + " responses from " + file);
+        } catch (IOException e) {
+            //The responses read before the error are kept
+            Log.e(LOGTAG, "The cache could not be read completely from " + file + ", " + entries.size() + " responses loaded");
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Writes the responses in the file, if the cache was created with one
+     */
+    public synchronized void save() {
+        if (file == null || !loaded)
+            return;
+
+        //The responses are written in a temporary file that replaces the previous one only when it is complete
+        File tmp = new File(file.getPath() + TMP_EXTENSION);
+        DataOutputStream out = null;
+        boolean written = false;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(FORMAT);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue().response);
+                out.writeLong(e.getValue().time);
+            }
+            out.close();
+            out = null;
+            written = true;
+        } catch (IOException e) {
+            Log.e(LOGTAG, "The cache could not be written to " + tmp);
+        } finally {
+            close(out);
+        }
+
+        if (written && !tmp.renameTo(file) && !(file.delete() && tmp.renameTo(file)))
+            Log.e(LOGTAG, "The cache could not be moved to " + file);
+        if (tmp.exists() && !tmp.delete())
+            Log.e(LOGTAG, "The file " + tmp + " could not be deleted");
+    }
+
+    /**
+     * Writes a string as its length followed by its UTF-8 bytes, as <code>writeUTF</code> is limited to 64 KB
+     */
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a string written with <code>writeString</code>
+     */
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > MAX_STRING_LENGTH)
+            throw new IOException("Invalid length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static void close(Closeable stream) {
+        if (stream != null) {
+            try {
+                stream.close();
+            } catch (IOException e) {
+                Log.e(LOGTAG, "Error closing " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,308 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.io.Reader;
+
+
+/**
+ * Streaming decoder for the JSON responses of the Pandorabots service, e.g.:
+ * {"status":"ok","responses":["Hello.","How are you?"],"sessionid":"12345"}
+ *
+ * It reads the body of the response directly from the connection, extracting only the
+ * elements of the "responses" array, which are trimmed and concatenated in a
+ * <code>StringBuilder</code> that is reused from one response to the next. The rest of the
+ * fields are skipped without being stored. While decoding, it also checks whether the
+ * bot indicated "match failed", so that it is not necessary to scan the response again.
+ *
+ * An instance must not be shared by several threads at the same time.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraResponseDecoder {
+
+    private static final String RESPONSES = "responses";
+    private static final String MATCH_FAILED = "match failed";
+
+    private final char[] buffer = new char[4096];
+    private int pos;
+    private int limit;
+    private Reader reader;
+
+    private final StringBuilder text = new StringBuilder(1024);   //Concatenation of the responses
+    private final StringBuilder name = new StringBuilder(32);     //Name of the field being read
+    private boolean matchFailed;
+
+    /**
+     * Decodes the response read from the reader
+     * @param reader body of the response
+     * @return concatenation of the elements of the "responses" array
+     * @throws IOException when the response cannot be read
+     * @throws PandoraException with the PARSE code if the response is not valid
+     */
+    public String decode(Reader reader) throws IOException, PandoraException {
+        this.reader = reader;
+        pos = 0;
+        limit = 0;
+        text.setLength(0);
+        matchFailed = false;
+
+        try {
+            boolean found = false;
+            expect('{');
+            int c = nextToken();
+            if (c != '}') {
+                while (true) {
+                    if (c != '"')
+                        throw new PandoraException(PandoraErrorCode.PARSE);
+                    name.setLength(0);
+                    readString(name);
+                    expect(':');
+                    if (!found && equals(name, RESPONSES)) {
+                        readResponses();
+                        found = true;
+                    } else {
+                        skipValue(nextToken());
+                    }
+                    c = nextToken();
+                    if (c == '}')
+                        break;
+                    if (c != ',')
+                        throw new PandoraException(PandoraErrorCode.PARSE);
+                    c = nextToken();
+                }
+            }
+            if (!found)
+                throw new PandoraException(PandoraErrorCode.PARSE);
+            return text.toString();
+        } finally {
+            this.reader = null;
+        }
+    }
+
+    /**
+     * @return true if the last response decoded contained "match failed" (ignoring case)
+     */
+    public boolean isMatchFailed() {
+        return matchFailed;
+    }
+
+    /**
+     * Reads the elements of the "responses" array, appending them to the text
+     */
+    private void readResponses() throws IOException, PandoraException {
+        expect('[');
+        int c = nextToken();
+        if (c == ']')
+            return;
+        while (true) {
+            if (c != '"')
+                throw new PandoraException(PandoraErrorCode.PARSE);
+            int start = text.length();
+            readString(text);
+            trim(start);
+            if (!matchFailed)
+                matchFailed = containsMatchFailed(Math.max(0, start - MATCH_FAILED.length() + 1));
+            c = nextToken();
+            if (c == ']')
+                return;
+            if (c != ',')
+                throw new PandoraException(PandoraErrorCode.PARSE);
+            c = nextToken();
+        }
+    }
+
+    /**
+     * Removes the whitespace at both ends of the text appended from the position start
+     */
+    private void trim(int start) {
+        int end = text.length();
+        while (end > start && text.charAt(end - 1) <= ' ')
+            end--;
+        text.setLength(end);
+        int first = start;
+        while (first < end && text.charAt(first) <= ' ')
+            first++;
+        if (first > start)
+            text.delete(start, first);
+    }
+
+    /**
+     * Looks for "match failed" (ignoring case) in the text from the position from
+     */
+    private boolean containsMatchFailed(int from) {
+        int last = text.length() - MATCH_FAILED.length();
+        for (int i = from; i <= last; i++) {
+            int j = 0;
+            while (j < MATCH_FAILED.length() && Character.toLowerCase(text.charAt(i + j)) == MATCH_FAILED.charAt(j))
+                j++;
+            if (j == MATCH_FAILED.length())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads a JSON string (the opening quote has already been read) and appends it to out
+     */
+    private void readString(StringBuilder out) throws IOException, PandoraException {
+        while (true) {
+            int c = read();
+            if (c == '"')
+                return;
+            if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case 'n': out.append('\n'); break;
+                    case 't': out.append('\t'); break;
+                    case 'r': out.append('\r'); break;
+                    case 'b': out.append('\b'); break;
+                    case 'f': out.append('\f'); break;
+                    case 'u':
+                        int code = 0;
+                        for (int i = 0; i < 4; i++)
+                            code = (code << 4) + hex(read());
+                        out.append((char) code);
+                        break;
+                    case '"':
+                    case '\\':
+                    case '/':
+                        out.append((char) c);
+                        break;
+                    default:
+                        throw new PandoraException(PandoraErrorCode.PARSE);
+                }
+            } else if (c < 0) {
+                throw new PandoraException(PandoraErrorCode.PARSE);
+            } else {
+                out.append((char) c);
+            }
+        }
+    }
+
+    /**
+     * Skips a JSON value whose first character is c
+     */
+    private void skipValue(int c) throws IOException, PandoraException {
+        if (c == '"') {
+            skipString();
+        } else if (c == '{' || c == '[') {
+            int depth = 1;
+            while (depth > 0) {
+                c = read();
+                if (c == '"')
+                    skipString();
+                else if (c == '{' || c == '[')
+                    depth++;
+                else if (c == '}' || c == ']')
+                    depth--;
+                else if (c < 0)
+                    throw new PandoraException(PandoraErrorCode.PARSE);
+            }
+        } else if (c < 0 || c == ',' || c == '}' || c == ']' || c == ':') {
+            throw new PandoraException(PandoraErrorCode.PARSE);
+        } else {
+            //Literal (number, true, false or null): skip until the next separator
+            while (true) {
+                c = peek();
+                if (c < 0 || c == ',' || c == '}' || c == ']' || c <= ' ')
+                    return;
+                pos++;
+            }
+        }
+    }
+
+    /**
+     * Skips the rest of a JSON string (the opening quote has already been read)
+     */
+    private void skipString() throws IOException, PandoraException {
+        while (true) {
+            int c = read();
+            if (c == '"')
+                return;
+            if (c == '\\')
+                c = read();
+            if (c < 0)
+                throw new PandoraException(PandoraErrorCode.PARSE);
+        }
+    }
+
+    private void expect(char expected) throws IOException, PandoraException {
+        if (nextToken() != expected)
+            throw new PandoraException(PandoraErrorCode.PARSE);
+    }
+
+    /**
+     * @return next character that is not whitespace, or -1 at the end of the input
+     */
+    private int nextToken() throws IOException {
+        int c;
+        do {
+            c = read();
+        } while (c >= 0 && c <= ' ');
+        return c;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return buffer[pos++];
+    }
+
+    private int peek() throws IOException {
+        if (pos == limit && !fill())
+            return -1;
+        return buffer[pos];
+    }
+
+    private boolean fill() throws IOException {
+        int n = reader.read(buffer, 0, buffer.length);
+        if (n <= 0)
+            return false;
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private static int hex(int c) throws PandoraException {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        throw new PandoraException(PandoraErrorCode.PARSE);
+    }
+
+    private static boolean equals(StringBuilder sb, String s) {
+        if (sb.length() != s.length())
+            return false;
+        for (int i = 0; i < s.length(); i++) {
+            if (sb.charAt(i) != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+}
@@ -23,27 +23,26 @@ package conversandroid.pandora;
 
 import android.app.Activity;
 import android.app.SearchManager;
+import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
-import android.content.pm.ApplicationInfo;
-import android.content.pm.PackageManager;
+import android.location.Location;
 import android.net.Uri;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 
-import org.w3c.dom.Document;
-import org.xml.sax.InputSource;
-
-import java.io.StringReader;
+import java.util.HashMap;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathFactory;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import conversandroid.voiceinterface.VoiceActivity;
 
@@ -53,6 +52,18 @@ import conversandroid.voiceinterface.VoiceActivity;
  * may contain <oob> tags that demand further processing. OOBPRocessor contains the methods
  * that carry out such functionality.
  *
+ * The response is parsed in a single pass with a <code>PandoraOobParser</code>, and each element of the
+ * <oob> content is sent to the <code>OobHandler</code> registered for the name of its tag. The handlers for
+ * map, search, launch, battery and directions are registered when the processor is created, and new ones can
+ * be added with <code>register</code>.
+ *
+ * The text of the response is synthesized as soon as the <oob> content has been parsed, while the handlers run
+ * in parallel in background threads, each one with a timeout, so that slow operations (e.g. looking up the
+ * installed apps or the location) do not delay the answer nor block the main thread. Each action is carried out
+ * in the main thread when its handler finishes: its message is synthesized and its intent started. When an action
+ * fails or times out, the failure is reported on its own, and the rest of the response is not affected.
+ * The processor can be reused for all the responses of the bot, and must be shut down when it is no longer needed.
+ *
  * @author Michael McTear, Zoraida Callejas and David Griol
  * @version 4.1, 05/16/16
  */
@@ -64,6 +75,31 @@ public class PandoraResultProcessor {
 	Integer msgId;
 	Exception exception = null;
 
+	public static final long DEFAULT_TIMEOUT = 3000; //Milliseconds that a handler can take by default
+	private static final long LOCATION_TIMEOUT = 10000; //Milliseconds for the handlers that find the location
+	private static final long LOCATION_WAIT = 5000; //Milliseconds waiting for a new fix when the last one is too old
+	private static final int HANDLER_THREADS = 4;
+
+	/**
+	 * Handler registered for a tag together with its timeout
+	 */
+	private static class Registration {
+		final OobHandler handler;
+		final long timeout;
+
+		Registration(OobHandler handler, long timeout) {
+			this.handler = handler;
+			this.timeout = timeout;
+		}
+	}
+
+	private final Map<String, Registration> handlers = new HashMap<String, Registration>(); //Indexed by the name of the tag
+	private final PandoraOobParser parser = new PandoraOobParser();
+	private char[] plainText = new char[256]; //Text to speak without HTML tags or entities
+
+	private final ThreadPoolExecutor handlerExecutor; //Runs the handlers in parallel
+	private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
 
 	/**
 	 * Constructor of the OOBProccesor
@@ -73,36 +109,129 @@ public class PandoraResultProcessor {
 	public PandoraResultProcessor(VoiceActivity ctx, Integer msgId) {
 		this.ctx = ctx;
 		this.msgId = msgId;
+
+		handlerExecutor = newExecutor(HANDLER_THREADS, "oob-handler-");
+
+		// map request extract address and do mapSearch()
+		register("map", new OobHandler() {
+			@Override
+			public OobAction handle(PandoraOobParser.Element element, String textToSpeak, Context ctx) throws Exception {
+				String mapText;
+				double lat = 0;
+				double lng = 0;
+
+				PandoraOobParser.Element myloc = element.find("myloc");
+				if (myloc != null) {
+					mapText = myloc.getText().length() > 0 ? myloc.getText() : element.getText();
+					Location location = findLocation();
+					if (location != null) {
+						lat = location.getLatitude();
+						lng = location.getLongitude();
+					}
+					Log.d(LOGTAG, "Latitude: " + lat);
+					Log.d(LOGTAG, "Longitude: " + lng);
+				} else {
+					mapText = element.getText();
+				}
+				Log.d(LOGTAG, "MapText " + mapText);
+				return mapSearch(mapText, lat, lng);
+			}
+		}, LOCATION_TIMEOUT);
+
+		// perform a web search
+		register("search", new OobHandler() {
+			@Override
+			public OobAction handle(PandoraOobParser.Element element, String textToSpeak, Context ctx) throws Exception {
+				String queryText = element.getText();
+				Log.d(LOGTAG, "QueryText " + queryText);
+				return search(queryText);
+			}
+		});
+
+		// request to launch an app
+		register("launch", new OobHandler() {
+			@Override
+			public OobAction handle(PandoraOobParser.Element element, String textToSpeak, Context ctx) throws Exception {
+				String app = element.getText();
+				Log.d(LOGTAG, "App " + app);
+				return launchApp(app);
+			}
+		});
+
+		// battery level request
+		register("battery", new OobHandler() {
+			@Override
+			public OobAction handle(PandoraOobParser.Element element, String textToSpeak, Context ctx) throws Exception {
+				return batteryLevel();
+			}
+		});
+
+		//get direction to a place
+		register("directions", new OobHandler() {
+			@Override
+			public OobAction handle(PandoraOobParser.Element element, String textToSpeak, Context ctx) throws Exception {
+				String from = element.findText("from");
+				String to = element.findText("to");
+				Log.d(LOGTAG, "From " + from);
+				Log.d(LOGTAG, "To " + to);
+
+				return getDirections(from, to);
+			}
+		}, LOCATION_TIMEOUT);
+	}
+
+	/**
+	 * Registers the handler for a tag with the default timeout, replacing the previous one if there was any
+	 * @param tag name of the tag, e.g. "map" for <map>
+	 * @param handler action carried out for the tag
+	 */
+	public void register(String tag, OobHandler handler) {
+		register(tag, handler, DEFAULT_TIMEOUT);
+	}
+
+	/**
+	 * Registers the handler for a tag, replacing the previous one if there was any
+	 * @param tag name of the tag, e.g. "map" for <map>
+	 * @param handler action carried out for the tag
+	 * @param timeout milliseconds that the handler can take, after which its action is discarded
+	 */
+	public synchronized void register(String tag, OobHandler handler, long timeout) {
+		handlers.put(tag, new Registration(handler, timeout));
 	}
 
 	/**
-	 * Parses the response from the Pandora service
+	 * Removes the handler for a tag, so that the tag is ignored
+	 */
+	public synchronized void unregister(String tag) {
+		handlers.remove(tag);
+	}
+
+	/**
+	 * Parses the response from the Pandora service and starts its oob actions. The method returns
+	 * immediately, the actions are carried out in background
 	 * 
 	 * @param output
 	 * @throws Exception
 	 *             when the bot is not able to synthesize a message or the
 	 *             result cannot be parsed
 	 */
-	public void processOobOutput(String output) throws Exception {
+	public synchronized void processOobOutput(String output) throws Exception {
 		if (output != null) {
-			// Save the content within the <oob> tags as oobContent
-			// Remove oobContent from output and save as textToSpeak
-
-			Pattern pattern = Pattern.compile("<oob>(.*)</oob>");
-			Matcher matcher = pattern.matcher(output);
-			if (matcher.find()) {
-				String oobContent = matcher.group(1);
-				String textToSpeak = output.replaceAll("<oob>" + oobContent
-						+ "</oob>", "");
-				Log.d(LOGTAG, "oobContent " + oobContent);
+			// Separate the content within the <oob> tags from the textToSpeak in a single pass
+			if (parser.parse(output)) {
+				String text = parser.getTextToSpeak();
+				if (plainText.length < text.length())
+					plainText = new char[text.length()];
+				String textToSpeak = new String(plainText, 0, MarkupStripper.strip(text, plainText));
+				Log.d(LOGTAG, "oobContent " + parser.getElements());
 				Log.d(LOGTAG, "textToSpeak " + textToSpeak);
-				processOobContent(oobContent, textToSpeak);
+				dispatch(textToSpeak);
 			}
 		}
 	}
 
 	/**
-	 * Processes the contents of the oob tag using XPath and carries out the
+	 * Processes the contents of the oob tag and carries out the
 	 * corresponding action: find location in map, perform a web search, launch
 	 * an app, indicate the battery level, or get directions
 	 * It also synthesizes the message that accompanies the oob tag
@@ -112,210 +241,241 @@ public class PandoraResultProcessor {
 	 * @throws Exception when the oob action fails
 	 * 
 	 */
-	public void processOobContent(String oobContent, String textToSpeak) throws Exception {
+	public synchronized void processOobContent(String oobContent, String textToSpeak) throws Exception {
+		parser.parseOob(oobContent);
+		dispatch(textToSpeak);
+	}
 
-			//Parse the oobContent to look for other tags (e.g. <map>, <search>...)
-			DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-			DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-			InputSource s = new InputSource(new StringReader(oobContent));
-			Document doc = dBuilder.parse(s);
+	/**
+	 * Stops the threads of the processor, discarding the actions that have not been carried out yet
+	 */
+	public void shutdown() {
+		handlerExecutor.shutdownNow();
+		mainHandler.removeCallbacksAndMessages(null); //Pending actions and timeouts
+	}
 
-			doc.getDocumentElement().normalize();
-			XPathFactory factory = XPathFactory.newInstance();
-			XPath xpath = factory.newXPath();
+	/**
+	 * Synthesizes the text of the response and starts the handlers of the elements parsed in background.
+	 * The action of each handler is carried out in the main thread as soon as it is ready, unless its timeout expires first
+	 */
+	private void dispatch(final String textToSpeak) {
+		parser.nest("map", "myloc"); //<map/><myloc/> is the same as <map><myloc/></map>
+
+		final boolean location = needsLocation(parser.getElements());
+		mainHandler.post(new Runnable() {
+			@Override
+			public void run() {
+				//The permission is requested in the main thread, the handlers only check whether it has been granted
+				if (location)
+					LocationTracker.getInstance(ctx).checkLocationPermission((Activity) ctx);
+				if (textToSpeak.trim().length() > 0)
+					speak(textToSpeak);
+			}
+		});
 
-			// map request extract address and do mapSearch()
-			if (oobContent.contains("<map>")) {
-				String mapText = null;
-				double lat = 0;
-				double lng = 0;
+		for (final PandoraOobParser.Element element : parser.getElements()) {
+			final Registration registration = handlers.get(element.getName());
+			if (registration == null) {
+				Log.d(LOGTAG, "Unsupported oob tag: " + element.getName());
+				continue;
+			}
 
-				if (oobContent.contains("<myloc>")) {
-					mapText = (String) xpath.evaluate("//myloc", doc, XPathConstants.STRING);
-					FindLocation findLocation = new FindLocation(ctx);
-					lat = findLocation.getLatitude();
-					lng = findLocation.getLongitude();
-					Log.d(LOGTAG, "Latitude: " + lat);
-					Log.d(LOGTAG, "Longitude: " + lng);
-				} else {
-					mapText = (String) xpath.evaluate("//map", doc, XPathConstants.STRING);
+			final String tag = element.getName();
+			final AtomicBoolean finished = new AtomicBoolean(false); //Set in the main thread when the action is carried out or times out
+			final Future<?> future = handlerExecutor.submit(new Runnable() {
+				@Override
+				public void run() {
+					OobAction action;
+					try {
+						action = registration.handler.handle(element, textToSpeak, ctx);
+					} catch (InterruptedException e) {
+						return; //Timed out or shut down
+					} catch (Exception e) {
+						Log.e(LOGTAG, "The oob action for <" + tag + "> failed: " + e);
+						action = new OobAction(failureMessage(tag), null, true);
+					}
+					final OobAction result = action;
+					mainHandler.post(new Runnable() {
+						@Override
+						public void run() {
+							if (result != null && finished.compareAndSet(false, true))
+								perform(result);
+						}
+					});
 				}
-				Log.d(LOGTAG, "MapText " + mapText);
-				mapSearch(mapText, lat, lng, textToSpeak);
-			}
+			});
+			mainHandler.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					if (finished.compareAndSet(false, true)) {
+						future.cancel(true);
+						Log.e(LOGTAG, "The oob action for <" + tag + "> timed out");
+						speak(failureMessage(tag));
+					}
+				}
+			}, registration.timeout);
+		}
+	}
 
-			// perform a web search
-			if (oobContent.contains("<search>")) {
-				String queryText = null;
-				queryText = (String) xpath.evaluate("//search", doc, XPathConstants.STRING);
-				Log.d(LOGTAG, "QueryText " + queryText);
-				search(queryText, textToSpeak);
+	/**
+	 * Synthesizes the message of an action and starts its intent
+	 */
+	private void perform(OobAction action) {
+		if (action.getTextToSpeak() != null)
+			speak(action.getTextToSpeak());
+		if (action.getIntent() != null) {
+			try {
+				ctx.startActivity(action.getIntent());
+			} catch (ActivityNotFoundException e) {
+				Log.e(LOGTAG, "No activity found for " + action.getIntent());
 			}
+		}
+	}
 
-			// request to launch an app
-			if (oobContent.contains("<launch>")) {
-				String app = null;
-				app = (String) xpath.evaluate("//launch", doc,
-						XPathConstants.STRING);
-				Log.d(LOGTAG, "App " + app);
-				launchApp(app, textToSpeak);
-			}
+	/**
+	 * @return message that reports that the action for a tag could not be carried out
+	 */
+	private static String failureMessage(String tag) {
+		return "Sorry, the " + tag + " action could not be completed";
+	}
 
-			// battery level request
-			if (oobContent.contains("<battery>")) {
-				batteryLevel();
-			}
+	private void speak(String text) {
+		try {
+			((VoiceActivity) ctx).speak(text, "EN", msgId);
+		} catch (Exception e) {
+			Log.e(LOGTAG, "TTS failed");
+		}
+	}
 
-			//get direction to a place
-			if (oobContent.contains("<directions>")) {
-				String from = null;
-				String to = null;
-				from = (String) xpath.evaluate("//from", doc, XPathConstants.STRING);
-				to = (String) xpath.evaluate("//to", doc, XPathConstants.STRING);
-				Log.d(LOGTAG, "From " + from);
-				Log.d(LOGTAG, "To " + to);
+	/**
+	 * Creates a pool of daemon threads that are released when they are idle
+	 */
+	private static ThreadPoolExecutor newExecutor(int threads, final String name) {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS,
+				new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+					private final AtomicInteger count = new AtomicInteger();
+
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, name + count.incrementAndGet());
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
 
-				getDirections(from, to, textToSpeak);
+	/**
+	 * @return true if the handlers of the elements need the location of the device: a map with <myloc>,
+	 * or directions without origin
+	 */
+	private static boolean needsLocation(List<PandoraOobParser.Element> elements) {
+		for (PandoraOobParser.Element element : elements) {
+			if (element.getName().equals("map") && element.find("myloc") != null)
+				return true;
+			if (element.getName().equals("directions")) {
+				String from = element.findText("from");
+				if (from == null || from.length() == 0)
+					return true;
 			}
+		}
+		return false;
+	}
 
+	/**
+	 * Obtains the location of the device from the shared tracker. It is invoked from the threads of the handlers,
+	 * so the permission is not requested here (see <code>dispatch</code>)
+	 * @return location, or null if it is not known or the permission has not been granted
+	 */
+	private Location findLocation() throws InterruptedException {
+		LocationTracker tracker = LocationTracker.getInstance(ctx);
+		if (!tracker.hasPermission())
+			return null;
+		return tracker.getLocation(LOCATION_WAIT);
 	}
 
 	/**
-	 * Launches a map in which the location (lat,lng) is highlighted. It also synthesizes
-	 * a message to describe the map
+	 * Prepares a map in which the location (lat,lng) is highlighted
 	 * 
 	 * @param mapText text describing the map
 	 * @param lat latitude of the position to be highlighted
 	 * @param lng longitude of the position to be highlighted
-	 * @param textToSpeak text to be synthesized along with the map
-	 * @throws Exception when the query to the map fails
 	 */
-	private void mapSearch(String mapText, double lat, double lng, String textToSpeak) throws Exception {
-		try {
-			((VoiceActivity) ctx).speak(textToSpeak, "EN", msgId);
-			mapText = mapText.replace(' ', '+');
-
-			Intent geoIntent = new Intent(android.content.Intent.ACTION_VIEW, Uri.parse("geo:"+ lat + "," + lng + "?q=" + mapText));
-			ctx.startActivity(geoIntent);
-
-		} catch (Exception e) {
-			Log.e(LOGTAG, "Map query for " + mapText + " failed");
-			throw new Exception(e);
-		}
+	private OobAction mapSearch(String mapText, double lat, double lng) {
+		mapText = mapText.replace(' ', '+');
+		Intent geoIntent = new Intent(android.content.Intent.ACTION_VIEW, Uri.parse("geo:"+ lat + "," + lng + "?q=" + mapText));
+		return new OobAction(null, geoIntent);
 	}
 
 	/**
-	 * Performs a web search for the indicated query and synthesizes a message that describes it
+	 * Prepares a web search for the indicated query
 	 * @param query
-	 * @param textToSpeak
-	 * @throws Exception when the web search fails
 	 */
-	private void search(String query, String textToSpeak) throws Exception {
-		try {
-			Intent intent = new Intent(Intent.ACTION_WEB_SEARCH);
-			intent.putExtra(SearchManager.QUERY, query);
-			((VoiceActivity) ctx).speak(textToSpeak, "EN", msgId);
-			ctx.startActivity(intent);
-		} catch (Exception e) {
-			Log.e(LOGTAG, "Search for '" + query + "' failed");
-			throw new Exception(e);
-		}
+	private OobAction search(String query) {
+		Intent intent = new Intent(Intent.ACTION_WEB_SEARCH);
+		intent.putExtra(SearchManager.QUERY, query);
+		return new OobAction(null, intent);
 	}
 
 	/** 
-	 * Checks the battery level and synthesizes it
+	 * Checks the battery level and prepares a message with it
 	 * @throws Exception when the query to the battery level fails
 	 */
-	private void batteryLevel() throws Exception {
-		try {
-			Intent batteryIntent = ctx.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
-			int rawlevel = batteryIntent.getIntExtra("level", -1);
-			double scale = batteryIntent.getIntExtra("scale", -1);
-			double level = -1;
-			int pct;
-
-			if (rawlevel >= 0 && scale > 0) {
-				level = rawlevel / scale;
-				pct = (int) (level * 100);  //Conversion from the raw battery level to a percentage
-				((VoiceActivity) ctx).speak("Your battery level is " + String.valueOf(pct) + "per cent", "EN", msgId);
-			}
-		} catch (Exception e) {
-			Log.e(LOGTAG, "BatteryLevel failed");
-			throw new Exception (e);
+	private OobAction batteryLevel() throws Exception {
+		Intent batteryIntent = ctx.registerReceiver(null, new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+		int rawlevel = batteryIntent.getIntExtra("level", -1);
+		double scale = batteryIntent.getIntExtra("scale", -1);
+		double level = -1;
+		int pct;
+
+		if (rawlevel >= 0 && scale > 0) {
+			level = rawlevel / scale;
+			pct = (int) (level * 100);  //Conversion from the raw battery level to a percentage
+			return new OobAction("Your battery level is " + String.valueOf(pct) + "per cent", null);
 		}
+		return null;
 	}
 
 	/**
-	 * Shows a map with the directions from the origin (from) to the destination (to). If
-	 * the origin is null, then the current position of the device is used. It also synthesizes
-	 * a message that accompanies the map
+	 * Prepares a map with the directions from the origin (from) to the destination (to). If
+	 * the origin is null, then the current position of the device is used
 	 * @param from origin location
 	 * @param to destination location
-	 * @param textToSpeak message to be synthesized
 	 */
-	private void getDirections(String from, String to, String textToSpeak) {
-		
-		try {	
-			
-			if (from != null) {
-				Uri uri = Uri.parse("http://maps.google.com/maps?saddr=" + from + "&daddr=" + to);
-				Intent intent = new Intent(Intent.ACTION_VIEW, uri);
-				((VoiceActivity) ctx).speak(textToSpeak, "EN", msgId);
-				ctx.startActivity(intent);
-	
-			} else
-			// query just asked for directions 'to X'
-			// so assume starting point is current location
-			// get values for current location
-			{
-				FindLocation findLocation = new FindLocation(ctx);
-				double lat = findLocation.getLatitude();
-				double lng = findLocation.getLongitude();
-				Uri uri = Uri.parse("http://maps.google.com/maps?saddr=" + lat + "," + lng + "&daddr=" + to);
-				Intent intent = new Intent(Intent.ACTION_VIEW, uri);
-				((VoiceActivity) ctx).speak(textToSpeak, "EN", msgId);
-				ctx.startActivity(intent);
-	
-			}
-		
-		}catch (Exception e){
-			Log.e(LOGTAG, "TTS failed");
+	private OobAction getDirections(String from, String to) throws InterruptedException {
+		Uri uri;
+		if (from != null && from.length() > 0) {
+			uri = Uri.parse("http://maps.google.com/maps?saddr=" + from + "&daddr=" + to);
+		} else
+		// query just asked for directions 'to X'
+		// so assume starting point is current location
+		// get values for current location
+		{
+			Location location = findLocation();
+			double lat = location != null ? location.getLatitude() : 0;
+			double lng = location != null ? location.getLongitude() : 0;
+			uri = Uri.parse("http://maps.google.com/maps?saddr=" + lat + "," + lng + "&daddr=" + to);
 		}
+		return new OobAction(null, new Intent(Intent.ACTION_VIEW, uri));
 	}
 
 	/**
-	 * Launches an app
+	 * Looks up an app in the index of installed apps and prepares the intent to launch it
 	 * 
 	 * @param app name of the app to be launched
-	 * @throws Exception when the app cannot be launched
 	 */
+	private OobAction launchApp(String app) {
+		String packageName = AppLabelIndex.getInstance(ctx).findPackage(app);
+		Intent launchApp = packageName != null ? ctx.getPackageManager().getLaunchIntentForPackage(packageName) : null;
 
-	private void launchApp(String app, String textToSpeak) throws Exception {
-		
-		PackageManager pm = ctx.getPackageManager();
-		List<ApplicationInfo> packages = pm.getInstalledApplications(PackageManager.GET_META_DATA);
-
-		String auxAppName;
-		String packageName = null;
-		
-		for (ApplicationInfo packageInfo : packages) {
-			auxAppName = packageInfo.loadLabel(ctx.getPackageManager()).toString();
-			
-			if(auxAppName.trim().toLowerCase().equals(app.trim().toLowerCase())){
-				packageName = packageInfo.packageName;
-				break;
-			}
-		}
-
-		// if app requested is not on the device, report to user
-		if (packageName == null) {
-			((VoiceActivity) ctx).speak("Could not find the app " + app, "EN", msgId);
+		// if app requested is not on the device (or cannot be launched), report to user
+		if (launchApp == null) {
+			return new OobAction("Could not find the app " + app, null, true);
 		} 
 		// it it is in the device, launch it
 		else{
-			((VoiceActivity) ctx).speak(textToSpeak, "EN", msgId);
-			Intent launchApp = pm.getLaunchIntentForPackage(packageName);
-			ctx.startActivity(launchApp);
+			return new OobAction(null, launchApp);
 		}
 			
 	}
@@ -0,0 +1,214 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+import java.util.concurrent.Future;
+
+
+/**
+ * Sends queries to Pandorabots speculatively with the partial recognition results, while the
+ * user is still speaking, so that most of the round trip to the service is hidden behind the
+ * end of the user utterance.
+ *
+ * Only the partial results that are stable, i.e. the ASR has provided the same text in several
+ * consecutive partial results, should be passed to the speculator. When the final result is available, the response to the speculative query is used if
+ * the final text is the same. Otherwise, it is discarded and the final text is sent as usual.
+ *
+ * Discarding a response does not undo its effects in the bot (e.g. the predicates set or the
+ * last answer used by &lt;that&gt;), so the number of speculative queries per turn is limited
+ * with <code>maxSpeculations</code>.
+ *
+ * A speculator is used for one turn at a time: <code>onPartialResult</code> may be invoked
+ * several times, and then <code>onFinalResult</code> or <code>cancel</code> ends the turn.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class PandoraSpeculator {
+
+    private static final String LOGTAG = "PANDORA_SPECULATOR";
+
+    private final PandoraConnection connection;
+    private final String botName;
+    private int maxSpeculations = 2;    //Speculative queries sent per turn
+
+    //State of the current turn
+    private int speculations = 0;
+    private Speculation speculation = null;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Speculative query, which keeps the response (or error) until the final result decides whether
+     * it is delivered to a listener or discarded
+     */
+    private static class Speculation implements PandoraListener {
+        final String key;
+        Future<String> future;
+        private boolean done = false;
+        private String response = null;
+        private PandoraException error = null;
+        private PandoraListener listener = null;
+
+        Speculation(String key) {
+            this.key = key;
+        }
+
+        @Override
+        public void onBotResponse(String response) {
+            PandoraListener target;
+            synchronized (this) {
+                this.response = response;
+                done = true;
+                target = listener;
+            }
+            if (target != null)
+                target.onBotResponse(response);
+        }
+
+        @Override
+        public void onBotError(PandoraException e) {
+            PandoraListener target;
+            synchronized (this) {
+                error = e;
+                done = true;
+                target = listener;
+            }
+            if (target != null)
+                target.onBotError(e);
+        }
+
+        /**
+         * Delivers the response to the listener, now if it has already been received or when it is received
+         */
+        void deliverTo(PandoraListener target) {
+            synchronized (this) {
+                if (!done) {
+                    listener = target;
+                    return;
+                }
+            }
+            if (error != null)
+                target.onBotError(error);
+            else
+                target.onBotResponse(response);
+        }
+    }
+
+    /**
+     * @param connection connection used to send both the speculative and the final queries
+     */
+    public PandoraSpeculator(PandoraConnection connection) {
+        this.connection = connection;
+        this.botName = connection.getBotName();
+    }
+
+    /**
+     * @param maxSpeculations maximum number of speculative queries sent in each turn
+     */
+    public synchronized void setMaxSpeculations(int maxSpeculations) {
+        this.maxSpeculations = maxSpeculations;
+    }
+
+    /**
+     * Processes a stable partial recognition result, sending it to the service if it has not been sent yet
+     * @param partialInput best partial recognition result
+     */
+    public synchronized void onPartialResult(String partialInput) {
+        if (partialInput == null || partialInput.trim().length() == 0)
+            return;
+
+        String key = PandoraResponseCache.key(botName, partialInput);
+        if ((speculation != null && speculation.key.equals(key)) || speculations >= maxSpeculations)
+            return;
+
+        //The previous speculation will not be used, since the partial result has changed
+        discard();
+        speculations++;
+        speculation = new Speculation(key);
+        speculation.future = connection.talkAsync(partialInput, speculation);
+        Log.d(LOGTAG, "Speculative query: " + partialInput);
+    }
+
+    /**
+     * Processes the final recognition result. If it is the same as the last speculative query, its response
+     * is delivered to the listener. Otherwise the final result is sent to the service.
+     * It ends the current turn
+     *
+     * @param input best recognition result
+     * @param listener receives the bot's response or the error, from a background thread
+     * @return future that holds the text of the bot's response
+     */
+    public synchronized Future<String> onFinalResult(String input, PandoraListener listener) {
+        Speculation used = speculation;
+        if (used != null && used.key.equals(PandoraResponseCache.key(botName, input))) {
+            hits++;
+            speculation = null;
+            reset();
+            Log.d(LOGTAG, "Speculative query used for: " + input);
+            used.deliverTo(listener);
+            return used.future;
+        }
+
+        if (used != null)
+            misses++;
+        cancel();
+        return connection.talkAsync(input, listener);
+    }
+
+    /**
+     * Ends the current turn discarding any speculative query (e.g. when the ASR fails)
+     */
+    public synchronized void cancel() {
+        discard();
+        reset();
+    }
+
+    /**
+     * @return number of final results answered with a speculative query
+     */
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of speculative queries discarded because the final result was different
+     */
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    private void discard() {
+        if (speculation != null) {
+            speculation.future.cancel(false); //If it has not been sent yet, it is not sent at all
+            speculation = null;
+        }
+    }
+
+    private void reset() {
+        speculations = 0;
+    }
+}
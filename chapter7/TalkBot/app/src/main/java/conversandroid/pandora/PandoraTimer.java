@@ -0,0 +1,207 @@
+package conversandroid.pandora;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.apache.http.HttpHost;
+import org.apache.http.conn.DnsResolver;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.LayeredConnectionSocketFactory;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+
+import conversandroid.metrics.MetricsRegistry;
+
+
+/**
+ * Measures the duration of the phases of a request to Pandorabots: DNS resolution, TCP connection,
+ * TLS handshake, time to first byte (from sending the request until the headers of the response
+ * are received), reading the body and parsing it. The durations are recorded in the histograms
+ * "pandora.dns", "pandora.connect", "pandora.tls", "pandora.ttfb", "pandora.read", "pandora.parse"
+ * and "pandora.total" of a <code>MetricsRegistry</code>.
+ *
+ * The HTTP client runs each request in the thread that sends it, so the timer of the current request
+ * is kept in a thread local variable, where the DNS resolver and the socket factories of the client find it.
+ * DNS, connection and TLS are only recorded when a new connection is opened (not when it is reused from the pool).
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+class PandoraTimer {
+
+    private static final ThreadLocal<PandoraTimer> current = new ThreadLocal<PandoraTimer>();
+
+    private final long start = System.nanoTime();
+    private long dns = -1;
+    private long connect = -1;
+    private long tls = -1;
+    private long ttfb = -1;
+    private long read = 0;
+    private long decode = -1;
+
+    /**
+     * Starts timing a request in the current thread
+     */
+    static PandoraTimer start() {
+        PandoraTimer timer = new PandoraTimer();
+        current.set(timer);
+        return timer;
+    }
+
+    /**
+     * Stops timing the request of the current thread
+     */
+    void stop() {
+        current.remove();
+    }
+
+    /**
+     * Invoked when the headers of the response have been received
+     */
+    void responseReceived() {
+        ttfb = System.nanoTime() - start - Math.max(0, dns) - Math.max(0, connect) - Math.max(0, tls);
+    }
+
+    /**
+     * Invoked when the body has been read and decoded
+     * @param startNanos time when decoding started
+     */
+    void decoded(long startNanos) {
+        decode = System.nanoTime() - startNanos;
+    }
+
+    /**
+     * Records the phases measured in the registry
+     */
+    void record(MetricsRegistry metrics) {
+        record(metrics, "pandora.dns", dns);
+        record(metrics, "pandora.connect", connect);
+        record(metrics, "pandora.tls", tls);
+        record(metrics, "pandora.ttfb", ttfb);
+        if (decode >= 0) {
+            record(metrics, "pandora.read", read);
+            record(metrics, "pandora.parse", decode - read);
+        }
+        record(metrics, "pandora.total", System.nanoTime() - start);
+    }
+
+    private static void record(MetricsRegistry metrics, String name, long nanos) {
+        if (nanos >= 0)
+            metrics.record(name, nanos / 1000);
+    }
+
+    /**
+     * Wraps the stream of the body of the response to measure the time spent waiting for its content
+     */
+    static InputStream timeReads(InputStream in) {
+        final PandoraTimer timer = current.get();
+        if (timer == null)
+            return in;
+        return new FilterInputStream(in) {
+            @Override
+            public int read() throws IOException {
+                long t = System.nanoTime();
+                try {
+                    return super.read();
+                } finally {
+                    timer.read += System.nanoTime() - t;
+                }
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                long t = System.nanoTime();
+                try {
+                    return super.read(b, off, len);
+                } finally {
+                    timer.read += System.nanoTime() - t;
+                }
+            }
+        };
+    }
+
+    /**
+     * DNS resolver that measures the time taken by the system resolver
+     */
+    static class TimedDnsResolver implements DnsResolver {
+        @Override
+        public InetAddress[] resolve(String host) throws UnknownHostException {
+            long t = System.nanoTime();
+            try {
+                return InetAddress.getAllByName(host);
+            } finally {
+                PandoraTimer timer = current.get();
+                if (timer != null)
+                    timer.dns = Math.max(0, timer.dns) + System.nanoTime() - t;
+            }
+        }
+    }
+
+    /**
+     * Socket factory that measures the TCP connection and, for HTTPS, the TLS handshake separately.
+     * The socket is connected here and then the handshake is made by the layered factory, instead of
+     * letting the layered factory do both
+     */
+    static class TimedSocketFactory implements ConnectionSocketFactory {
+        private final ConnectionSocketFactory plain;
+        private final LayeredConnectionSocketFactory layered;
+
+        /**
+         * @param plain factory that creates the sockets
+         * @param layered factory that creates the TLS sockets over the connected ones, or null for plain HTTP
+         */
+        TimedSocketFactory(ConnectionSocketFactory plain, LayeredConnectionSocketFactory layered) {
+            this.plain = plain;
+            this.layered = layered;
+        }
+
+        @Override
+        public Socket createSocket(HttpContext context) throws IOException {
+            return plain.createSocket(context);
+        }
+
+        @Override
+        public Socket connectSocket(int connectTimeout, Socket socket, HttpHost host, InetSocketAddress remoteAddress,
+                                    InetSocketAddress localAddress, HttpContext context) throws IOException {
+            PandoraTimer timer = current.get();
+            long t = System.nanoTime();
+            Socket connected = plain.connectSocket(connectTimeout, socket, host, remoteAddress, localAddress, context);
+            if (timer != null)
+                timer.connect = System.nanoTime() - t;
+            if (layered == null)
+                return connected;
+
+            t = System.nanoTime();
+            Socket secured = layered.createLayeredSocket(connected, host.getHostName(), remoteAddress.getPort(), context);
+            if (timer != null)
+                timer.tls = System.nanoTime() - t;
+            return secured;
+        }
+    }
+}
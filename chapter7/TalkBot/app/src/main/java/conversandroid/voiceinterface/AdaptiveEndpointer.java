@@ -0,0 +1,157 @@
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package conversandroid.voiceinterface;
+
+/**
+ * Detects the end of the user utterance from the level of the microphone (the RMS values that the speech recognizer
+ * provides in <code>onRmsChanged</code>), so that the recognition can be stopped before the platform detects it.
+ *
+ * It estimates the level of the background noise, which follows quickly the lower values and slowly the higher ones,
+ * and considers that there is speech when the level is clearly over the noise. When the user has spoken for a minimum
+ * time and then the level has been close to the noise during a silence, the utterance is considered to be over.
+ * The silence required is adapted to the user: if there have been pauses in the utterance, it must be longer than them.
+ *
+ * @author Zoraida Callejas, Michael McTear, David Griol
+ * @version 3.1, 05/16/16
+ */
+public class AdaptiveEndpointer {
+
+    private static final float SPEECH_MARGIN = 6f;      //dB over the noise floor to consider that there is speech
+    private static final float SILENCE_MARGIN = 3f;     //dB over the noise floor to consider that there is silence
+    private static final float FLOOR_DOWN = 0.5f;       //Weight of a value lower than the noise floor
+    private static final float FLOOR_UP = 0.02f;        //Weight of a value higher than the noise floor
+    private static final int MIN_NOISE_VALUES = 5;      //Values before speech required to estimate the noise
+    private static final float PAUSE_FACTOR = 1.5f;     //Silence required with respect to the longest pause of the utterance
+
+    private final long minSilence;
+    private final long maxSilence;
+    private final long minSpeech;
+
+    private float noiseFloor;
+    private int noiseValues;
+    private long speechStart;   //Time of the first value with speech, 0 if the user has not spoken yet
+    private long lastSpeech;    //Time of the last value with speech
+    private long lastSound;     //Time of the last value that was not silence
+    private long speechLength;  //Time with speech
+    private long longestPause;  //Longest silence after which the user continued speaking
+    private long lastTime;
+    private boolean detected;
+
+    /**
+     * @param minSilence milliseconds of silence after the speech that end an utterance without pauses
+     * @param maxSilence maximum milliseconds of silence required, however long the pauses of the utterance are
+     * @param minSpeech milliseconds of speech before the end of the utterance can be detected
+     */
+    public AdaptiveEndpointer(long minSilence, long maxSilence, long minSpeech) {
+        this.minSilence = minSilence;
+        this.maxSilence = Math.max(minSilence, maxSilence);
+        this.minSpeech = minSpeech;
+        reset();
+    }
+
+    /**
+     * Starts a new utterance
+     */
+    public void reset() {
+        noiseFloor = Float.NaN;
+        noiseValues = 0;
+        speechStart = 0;
+        lastSpeech = 0;
+        lastSound = 0;
+        speechLength = 0;
+        longestPause = 0;
+        lastTime = 0;
+        detected = false;
+    }
+
+    /**
+     * Processes a new level of the microphone
+     * @param rmsdB level in dB, as provided by the speech recognizer
+     * @param time time of the value in milliseconds (e.g. <code>SystemClock.uptimeMillis</code>)
+     * @return true when the end of the utterance is detected (only once per utterance)
+     */
+    public boolean onRms(float rmsdB, long time) {
+        if (detected)
+            return false;
+
+        long elapsed = lastTime == 0 ? 0 : time - lastTime;
+        lastTime = time;
+
+        if (Float.isNaN(noiseFloor)) {
+            noiseFloor = rmsdB;
+            noiseValues = 1;
+            return false;
+        }
+
+        boolean estimated = noiseValues >= MIN_NOISE_VALUES;
+        if (estimated && rmsdB >= noiseFloor + SPEECH_MARGIN) {
+            if (speechStart == 0) {
+                speechStart = time;
+            } else {
+                speechLength += elapsed;
+                long pause = time - lastSpeech;
+                if (pause > longestPause && pause > elapsed)
+                    longestPause = pause;
+            }
+            lastSpeech = time;
+            lastSound = time;
+            return false;
+        }
+
+        //The noise floor is not updated with the speech, so it follows the background
+        if (rmsdB < noiseFloor + SILENCE_MARGIN || speechStart == 0) {
+            noiseFloor += (rmsdB < noiseFloor ? FLOOR_DOWN : FLOOR_UP) * (rmsdB - noiseFloor);
+            noiseValues++;
+        }
+
+        if (rmsdB >= noiseFloor + SILENCE_MARGIN) { //Not speech, but not silence either (e.g. the end of a word)
+            lastSound = time;
+            return false;
+        }
+        if (speechStart == 0 || speechLength < minSpeech)
+            return false;
+
+        detected = time - lastSound >= getRequiredSilence();
+        return detected;
+    }
+
+    /**
+     * @return milliseconds of silence that end the current utterance, which depend on its pauses
+     */
+    public long getRequiredSilence() {
+        return Math.min(maxSilence, Math.max(minSilence, (long) (longestPause * PAUSE_FACTOR)));
+    }
+
+    /**
+     * @return estimation of the level of the background noise in dB
+     */
+    public float getNoiseFloor() {
+        return noiseFloor;
+    }
+
+    /**
+     * @return true if the user has started speaking
+     */
+    public boolean isSpeechDetected() {
+        return speechStart != 0;
+    }
+}
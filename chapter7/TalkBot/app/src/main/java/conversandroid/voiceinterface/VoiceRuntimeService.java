@@ -0,0 +1,732 @@
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package conversandroid.voiceinterface;
+
+
+import android.annotation.SuppressLint;
+import android.app.Service;
+import android.content.ContentResolver;
+import android.content.Intent;
+import android.content.pm.ResolveInfo;
+import android.os.Binder;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.provider.Settings;
+import android.speech.RecognitionListener;
+import android.speech.RecognizerIntent;
+import android.speech.SpeechRecognizer;
+import android.speech.tts.TextToSpeech;
+import android.speech.tts.TextToSpeech.OnInitListener;
+import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
+import android.speech.tts.UtteranceProgressListener;
+import android.speech.tts.Voice;
+import android.util.Log;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Service that owns the ASR and TTS engines, so that they are created once and shared by the activities
+ * of the app, instead of being created again each time an activity is created (e.g. when the device is rotated).
+ *
+ * The <code>VoiceActivity</code> subclasses bind to the service in <code>initSpeechInputOutput</code> and attach
+ * to it, so that the events of the engines are sent to the activity attached. The service is also started, so
+ * that it keeps running while an activity is recreated, and it is stopped when the activity is destroyed for
+ * other reasons. As a fallback (e.g. before API level 11, when the activities cannot tell whether they are being
+ * recreated), the service stops itself when no activity has been bound to it for <code>IDLE_TIMEOUT</code> ms.
+ *
+ * The prompts are rendered for the <code>PromptCache</code> by a second TTS instance, only while the TTS is not
+ * speaking, and a prompt being rendered is cancelled when a new utterance is spoken, so that the rendering
+ * never delays what the user hears.
+ *
+ * @author Zoraida Callejas, Michael McTear, David Griol
+ * @version 3.1, 05/16/16
+ */
+public class VoiceRuntimeService extends Service implements OnInitListener {
+
+    private static final String LOGTAG = "VOICERUNTIME";
+    private static final int NOT_INITIALIZED = Integer.MIN_VALUE;
+    private static final long PROMPT_CACHE_SIZE = 4 * 1024 * 1024; //Bytes of audio of the prompts kept in files
+    private static final long IDLE_TIMEOUT = 5000; //Milliseconds without clients bound before the service stops itself
+    private static final long RENDER_POLL = 500; //Milliseconds between checks of the TTS before rendering a prompt
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler();
+    private final Runnable stopIdle = new Runnable() {
+        public void run() {
+            Log.d(LOGTAG, "No activity bound, stopping the service");
+            stopSelf();
+        }
+    };
+    private TextToSpeech myTTS;
+    private SpeechRecognizer myASR;
+    private int ttsStatus = NOT_INITIALIZED;
+    private volatile VoiceActivity client = null; //The TTS events are received in other threads
+
+    private final Map<Locale, Integer> availability = new HashMap<Locale, Integer>(); //Languages checked in the TTS
+    private Locale language = null; //Language set in the TTS
+    private PromptCache prompts;
+    private final Map<String, String> promptSounds = new HashMap<String, String>(); //Prompt keys and their sounds in the TTS
+    private TextToSpeech renderTTS = null; //Renders the prompts in background, created the first time it is needed
+    private int renderStatus = NOT_INITIALIZED;
+    private final LinkedHashMap<String, Prompt> pendingPrompts = new LinkedHashMap<String, Prompt>(); //Prompts to render, by key
+    private Prompt renderingPrompt = null; //Prompt being rendered, null if none
+    private final Runnable renderNext = new Runnable() {
+        public void run() {
+            renderNextPrompt();
+        }
+    };
+
+    public static final String CHUNK_PREFIX = "chunk:"; //Prefix of the ids of the chunks queued in the TTS
+    private final Map<String, Utterance> utterances = new HashMap<String, Utterance>(); //Utterances spoken in chunks, by the id of their chunks
+    private int chunkedCount = 0; //Number of utterances spoken in chunks, used to give their chunks unique ids
+
+    /**
+     * Utterance synthesized in several chunks. The chunks are queued with an id unique to the utterance, so that
+     * their events are not mistaken for those of other utterances with the same id. The activity receives the start
+     * of the first chunk and the end of the last one with the id of the utterance, so it perceives them as a single
+     * utterance
+     */
+    private static class Utterance {
+        final String id;
+        int chunks = 0;         //Chunks queued that have not finished yet (briefly negative if a chunk ends before its queuing is reported)
+        boolean open = true;    //More chunks may be queued
+        boolean started = false;
+        boolean failed = false;
+
+        Utterance(String id) {
+            this.id = id;
+        }
+    }
+
+    /**
+     * Prompt waiting to be rendered, with the parameters of the TTS when it was spoken, which are those of its key
+     */
+    private static class Prompt {
+        final String text;
+        final String key;
+        final Locale language;
+        final Object voice; //Voice of the TTS from API level 21, null otherwise
+
+        Prompt(String text, String key, Locale language, Object voice) {
+            this.text = text;
+            this.key = key;
+            this.language = language;
+            this.voice = voice;
+        }
+    }
+
+    /**
+     * Binder returned to the activities of the app, which run in the same process
+     */
+    public class LocalBinder extends Binder {
+        public VoiceRuntimeService getService() {
+            return VoiceRuntimeService.this;
+        }
+    }
+
+    /**
+     * Creates the speech recognizer and text-to-speech synthesizer instances
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        long start = System.currentTimeMillis();
+
+        setTTS();
+        prompts = new PromptCache(new File(getCacheDir(), "tts_prompts"), PROMPT_CACHE_SIZE);
+
+        // Find out whether speech recognition is supported
+        List<ResolveInfo> intActivities = getPackageManager().queryIntentActivities(
+                new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH), 0);
+        if (intActivities.size() != 0 || "generic".equals(Build.BRAND.toLowerCase(Locale.US))) {
+            myASR = SpeechRecognizer.createSpeechRecognizer(this);
+            myASR.setRecognitionListener(recognitionListener);
+        }
+        else
+            myASR = null;
+
+        Log.d(LOGTAG, "Speech engines created in " + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    @Override
+    public IBinder onBind(Intent intent) {
+        handler.removeCallbacks(stopIdle);
+        return binder;
+    }
+
+    @Override
+    public void onRebind(Intent intent) {
+        handler.removeCallbacks(stopIdle);
+    }
+
+    /**
+     * Schedules the stop of the service when the last activity unbinds from it, unless another one binds
+     * before <code>IDLE_TIMEOUT</code> ms (e.g. the new instance of an activity that has been recreated)
+     * @return true, so that <code>onRebind</code> is invoked when an activity binds again
+     */
+    @Override
+    public boolean onUnbind(Intent intent) {
+        handler.postDelayed(stopIdle, IDLE_TIMEOUT);
+        return true;
+    }
+
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        return START_NOT_STICKY;
+    }
+
+    /**
+     * Releases the native resources of the engines
+     */
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+        handler.removeCallbacks(stopIdle);
+        handler.removeCallbacks(renderNext);
+        myTTS.stop();
+        myTTS.shutdown();
+        myTTS = null;
+        if (renderTTS != null) {
+            renderTTS.stop();
+            renderTTS.shutdown();
+            renderTTS = null;
+        }
+        prompts.cancel();
+        if (myASR != null) {
+            myASR.destroy();
+            myASR = null;
+        }
+    }
+
+    /**
+     * Sends the events of the engines to an activity. If the TTS has already been initialized,
+     * the activity is notified immediately with <code>onInit</code>
+     */
+    public void attach(VoiceActivity activity) {
+        client = activity;
+        if (ttsStatus != NOT_INITIALIZED)
+            activity.onInit(ttsStatus);
+    }
+
+    /**
+     * Stops sending the events of the engines to an activity, if it is the one attached
+     */
+    public void detach(VoiceActivity activity) {
+        if (client == activity)
+            client = null;
+    }
+
+    public TextToSpeech getTextToSpeech() {
+        return myTTS;
+    }
+
+    /**
+     * @return speech recognizer, or null if speech recognition is not supported in the device
+     */
+    public SpeechRecognizer getSpeechRecognizer() {
+        return myASR;
+    }
+
+    /**
+     * @return true if the TTS has been initialized successfully
+     */
+    public synchronized boolean isTtsReady() {
+        return ttsStatus == TextToSpeech.SUCCESS;
+    }
+
+    /**
+     * Checks whether a language is available in the TTS. Each language is checked only once, as each
+     * check is a call to the TTS engine
+     * @return result of <code>TextToSpeech.isLanguageAvailable</code>
+     */
+    public synchronized int isLanguageAvailable(Locale locale) {
+        Integer result = availability.get(locale);
+        if (result == null) {
+            result = myTTS.isLanguageAvailable(locale);
+            if (ttsStatus == TextToSpeech.SUCCESS) //Before the initialization the result is not valid
+                availability.put(locale, result);
+        }
+        return result;
+    }
+
+    /**
+     * Sets the language of the TTS, only if it is not the current one
+     */
+    public synchronized void setLanguage(Locale locale) {
+        if (!locale.equals(language)) {
+            myTTS.setLanguage(locale);
+            if (ttsStatus == TextToSpeech.SUCCESS)
+                language = locale;
+        }
+    }
+
+    /**
+     * Indicates that the texts queued next with the id returned, until <code>endChunks</code> is invoked,
+     * are chunks of the utterance with the id indicated
+     * @return id of the chunks in the TTS, unique to this utterance
+     */
+    public synchronized String beginChunks(String utteranceId) {
+        String chunkId = CHUNK_PREFIX + (chunkedCount++) + ":" + utteranceId;
+        utterances.put(chunkId, new Utterance(utteranceId));
+        return chunkId;
+    }
+
+    /**
+     * Indicates whether a chunk of an utterance has been queued in the TTS. If it could not be queued,
+     * the activity receives the error of the utterance
+     * @param chunkId id returned by <code>beginChunks</code>
+     * @param queued true if <code>TextToSpeech.speak</code> returned <code>SUCCESS</code>
+     */
+    public void onChunkQueued(String chunkId, boolean queued) {
+        Utterance utterance;
+        synchronized (this) {
+            utterance = utterances.get(chunkId);
+            if (utterance == null) //The TTS was stopped
+                return;
+            if (queued)
+                utterance.chunks++;
+        }
+        if (!queued)
+            onChunkEvent(chunkId, utterance, false, true);
+    }
+
+    /**
+     * Indicates that all the chunks of an utterance have been queued in the TTS. If none of them is pending
+     * (e.g. none could be queued), the activity receives the end or error of the utterance immediately
+     * @param chunkId id returned by <code>beginChunks</code>
+     */
+    public void endChunks(String chunkId) {
+        Utterance utterance;
+        synchronized (this) {
+            utterance = utterances.get(chunkId);
+            if (utterance == null)
+                return;
+            utterance.open = false;
+        }
+        onChunkEvent(chunkId, utterance, false, false);
+    }
+
+    /**
+     * Forgets the utterances being spoken in chunks, when the TTS is stopped
+     */
+    public synchronized void onTtsStopped() {
+        utterances.clear();
+    }
+
+    /**
+     * Cancels the prompt being rendered, if any, before an utterance is queued in the TTS, so that the engine
+     * does not render it before synthesizing the utterance. It is rendered again when the TTS is not speaking
+     */
+    public synchronized void yieldToSpeech() {
+        if (renderingPrompt == null)
+            return;
+        renderTTS.stop();
+        prompts.cancel();
+        pendingPrompts.put(renderingPrompt.key, renderingPrompt);
+        renderingPrompt = null;
+        handler.removeCallbacks(renderNext);
+        handler.postDelayed(renderNext, RENDER_POLL);
+    }
+
+    /**
+     * Finds the audio of a prompt in the cache, rendered with the current parameters of the TTS. The audio file is
+     * added to the TTS as a sound, so that it is played in order with the rest of utterances when it is spoken
+     * @return text that plays the audio of the prompt when it is spoken, or null if it is not in the cache
+     */
+    public synchronized String getPromptSound(String text) {
+        String key = promptKey(text);
+        if (key == null)
+            return null;
+        File audio = prompts.get(key);
+        if (audio == null)
+            return null;
+
+        String sound = promptSounds.get(key);
+        if (sound == null) {
+            sound = "[" + PromptCache.UTTERANCE_PREFIX + key + "]";
+            myTTS.addSpeech(sound, audio.getPath());
+            promptSounds.put(key, sound);
+        }
+        return sound;
+    }
+
+    /**
+     * Schedules the rendering of the audio of a prompt with the current parameters of the TTS, so that it is
+     * in the cache the next time it is spoken. It is rendered by another TTS instance when the TTS is not speaking
+     */
+    @SuppressLint("NewApi")
+    public synchronized void renderPrompt(String text) {
+        String key = promptKey(text);
+        if (key == null || pendingPrompts.containsKey(key))
+            return;
+        Object voice = Build.VERSION.SDK_INT >= 21 ? myTTS.getVoice() : null;
+        pendingPrompts.put(key, new Prompt(text, key, language, voice));
+        handler.removeCallbacks(renderNext);
+        handler.postDelayed(renderNext, RENDER_POLL);
+    }
+
+    /**
+     * Renders the next prompt pending if the TTS is not speaking, or checks again after <code>RENDER_POLL</code> ms
+     * otherwise. The TTS instance for rendering is created the first time, and the prompt is rendered when
+     * it is initialized
+     */
+    @SuppressLint("NewApi")
+    private synchronized void renderNextPrompt() {
+        if (renderingPrompt != null || pendingPrompts.isEmpty() || myTTS == null)
+            return;
+        if (myTTS.isSpeaking()) {
+            handler.postDelayed(renderNext, RENDER_POLL);
+            return;
+        }
+        if (renderTTS == null) {
+            setRenderTTS();
+            return;
+        }
+        if (renderStatus == NOT_INITIALIZED)
+            return;
+        if (renderStatus != TextToSpeech.SUCCESS) {
+            pendingPrompts.clear();
+            return;
+        }
+
+        Iterator<Prompt> it = pendingPrompts.values().iterator();
+        Prompt prompt = it.next();
+        it.remove();
+        renderTTS.setLanguage(prompt.language);
+        if (prompt.voice != null)
+            renderTTS.setVoice((Voice) prompt.voice);
+        if (prompts.render(renderTTS, prompt.text, prompt.key))
+            renderingPrompt = prompt;
+        else
+            handler.post(renderNext);
+    }
+
+    /**
+     * Processes the end of the rendering of a prompt, and renders the next one
+     */
+    private void onPromptRendered(String utteranceId, boolean success) {
+        prompts.onRendered(utteranceId, success);
+        synchronized (this) {
+            if (renderingPrompt == null || !utteranceId.equals(PromptCache.UTTERANCE_PREFIX + renderingPrompt.key))
+                return; //Cancelled by yieldToSpeech
+            renderingPrompt = null;
+        }
+        handler.post(renderNext);
+    }
+
+    /**
+     * @return key of the prompt in the cache, taking into account the language, engine, voice and rate
+     * of the TTS, or null if the TTS has not been initialized
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private String promptKey(String text) {
+        if (ttsStatus != TextToSpeech.SUCCESS || language == null)
+            return null;
+
+        ContentResolver resolver = getContentResolver();
+        String engine = Settings.Secure.getString(resolver, Settings.Secure.TTS_DEFAULT_SYNTH);
+        int rate = Settings.Secure.getInt(resolver, Settings.Secure.TTS_DEFAULT_RATE, 100);
+        String voice = null;
+        if (Build.VERSION.SDK_INT >= 21) {
+            Voice current = myTTS.getVoice();
+            if (current != null)
+                voice = current.getName();
+        }
+        return PromptCache.key(text, language, engine, voice, rate);
+    }
+
+    /**
+     * @return utterance spoken in chunks to which an event of the TTS corresponds, or null if the event
+     * corresponds to a chunk of an utterance forgotten when the TTS was stopped
+     */
+    private synchronized Utterance chunkedUtterance(String chunkId) {
+        return utterances.get(chunkId);
+    }
+
+    /**
+     * Processes the start of a chunk. The activity only receives the start of the first one
+     */
+    private void onChunkStart(Utterance utterance) {
+        boolean first;
+        synchronized (this) {
+            first = !utterance.started;
+            utterance.started = true;
+        }
+        VoiceActivity activity = client;
+        if (first && activity != null)
+            activity.onTTSStart(utterance.id);
+    }
+
+    /**
+     * Processes the end (or error) of a chunk, or the end of the queuing of the chunks when <code>chunk</code>
+     * is false. The activity receives the first error of the utterance, or its end after the last chunk
+     */
+    private void onChunkEvent(String chunkId, Utterance utterance, boolean chunk, boolean error) {
+        boolean sendError = false;
+        boolean sendDone = false;
+        synchronized (this) {
+            if (chunk)
+                utterance.chunks--;
+            if (error && !utterance.failed) {
+                utterance.failed = true;
+                sendError = true;
+            }
+            if (!utterance.open && utterance.chunks == 0 && utterances.remove(chunkId) != null)
+                sendDone = !utterance.failed;
+        }
+        VoiceActivity activity = client;
+        if (activity != null) {
+            if (sendError)
+                activity.onTTSError(utterance.id);
+            else if (sendDone)
+                activity.onTTSDone(utterance.id);
+        }
+    }
+
+    @Override
+    public void onInit(int status) {
+        synchronized (this) {
+            ttsStatus = status;
+            availability.clear();
+            language = null;
+            promptSounds.clear(); //The sounds added belong to the previous engine
+        }
+        VoiceActivity activity = client;
+        if (activity != null)
+            activity.onInit(status);
+    }
+
+    /**
+     * Starts the TTS engine. It is work-around to avoid implementing the UtteranceProgressListener abstract class.
+     *
+     * @author Method by Greg Milette (comments incorporated by us). Source: https://github.com/gast-lib/gast-lib/blob/master/library/src/root/gast/speech/voiceaction/VoiceActionExecutor.java
+     * @see See the problem here: http://stackoverflow.com/questions/11703653/why-is-utteranceprogresslistener-not-an-interface
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private void setTTS()
+    {
+        myTTS = new TextToSpeech(this, this);
+
+		/*
+		 * The listener for the TTS events varies depending on the Android version used:
+		 * the most updated one is UtteranceProgressListener, but in SKD versions
+		 * 15 or earlier, it is necessary to use the deprecated OnUtteranceCompletedListener
+		 */
+
+        if (Build.VERSION.SDK_INT >= 15)
+        {
+            myTTS.setOnUtteranceProgressListener(new UtteranceProgressListener()
+            {
+                @Override
+                public void onDone(String utteranceId) //TTS finished synthesizing
+                {
+                    if (utteranceId.startsWith(CHUNK_PREFIX)) {
+                        Utterance utterance = chunkedUtterance(utteranceId);
+                        if (utterance != null)
+                            onChunkEvent(utteranceId, utterance, true, false);
+                        return;
+                    }
+                    VoiceActivity activity = client;
+                    if (activity != null)
+                        activity.onTTSDone(utteranceId);
+                }
+
+                @Override
+                public void onError(String utteranceId) //TTS encountered an error while synthesizing
+                {
+                    if (utteranceId.startsWith(CHUNK_PREFIX)) {
+                        Utterance utterance = chunkedUtterance(utteranceId);
+                        if (utterance != null)
+                            onChunkEvent(utteranceId, utterance, true, true);
+                        return;
+                    }
+                    VoiceActivity activity = client;
+                    if (activity != null)
+                        activity.onTTSError(utteranceId);
+                }
+
+                @Override
+                public void onStart(String utteranceId) //TTS has started synthesizing
+                {
+                    if (utteranceId.startsWith(CHUNK_PREFIX)) {
+                        Utterance utterance = chunkedUtterance(utteranceId);
+                        if (utterance != null)
+                            onChunkStart(utterance);
+                        return;
+                    }
+                    VoiceActivity activity = client;
+                    if (activity != null)
+                        activity.onTTSStart(utteranceId);
+                }
+            });
+        }
+        else
+        {
+            myTTS.setOnUtteranceCompletedListener(new OnUtteranceCompletedListener()
+            {
+                @Override
+                public void onUtteranceCompleted(final String utteranceId)
+                {
+                    if (utteranceId.startsWith(CHUNK_PREFIX)) {
+                        Utterance utterance = chunkedUtterance(utteranceId);
+                        if (utterance != null)
+                            onChunkEvent(utteranceId, utterance, true, false);
+                        return;
+                    }
+                    VoiceActivity activity = client;
+                    if (activity != null)
+                        activity.onTTSDone(utteranceId);			//Earlier SDKs only consider the onTTSDone event
+                }
+            });
+        }
+    }
+
+    /**
+     * Creates the TTS instance that renders the prompts, which receives only the events of the prompts
+     */
+    @SuppressLint("NewApi")
+    @SuppressWarnings("deprecation")
+    private void setRenderTTS()
+    {
+        renderTTS = new TextToSpeech(this, new OnInitListener() {
+            @Override
+            public void onInit(int status) {
+                synchronized (VoiceRuntimeService.this) {
+                    renderStatus = status;
+                }
+                handler.post(renderNext);
+            }
+        });
+
+        if (Build.VERSION.SDK_INT >= 15)
+        {
+            renderTTS.setOnUtteranceProgressListener(new UtteranceProgressListener()
+            {
+                @Override
+                public void onDone(String utteranceId)
+                {
+                    onPromptRendered(utteranceId, true);
+                }
+
+                @Override
+                public void onError(String utteranceId)
+                {
+                    onPromptRendered(utteranceId, false);
+                }
+
+                @Override
+                public void onStart(String utteranceId)
+                {
+                }
+            });
+        }
+        else
+        {
+            renderTTS.setOnUtteranceCompletedListener(new OnUtteranceCompletedListener()
+            {
+                @Override
+                public void onUtteranceCompleted(String utteranceId)
+                {
+                    onPromptRendered(utteranceId, true);
+                }
+            });
+        }
+    }
+
+    /**
+     * Sends the events of the speech recognizer to the activity attached
+     */
+    private final RecognitionListener recognitionListener = new RecognitionListener() {
+        @Override
+        public void onReadyForSpeech(Bundle params) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onReadyForSpeech(params);
+        }
+
+        @Override
+        public void onBeginningOfSpeech() {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onBeginningOfSpeech();
+        }
+
+        @Override
+        public void onRmsChanged(float rmsdB) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onRmsChanged(rmsdB);
+        }
+
+        @Override
+        public void onBufferReceived(byte[] buffer) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onBufferReceived(buffer);
+        }
+
+        @Override
+        public void onEndOfSpeech() {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onEndOfSpeech();
+        }
+
+        @Override
+        public void onError(int error) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onError(error);
+        }
+
+        @Override
+        public void onResults(Bundle results) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onResults(results);
+        }
+
+        @Override
+        public void onPartialResults(Bundle partialResults) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onPartialResults(partialResults);
+        }
+
+        @Override
+        public void onEvent(int eventType, Bundle params) {
+            VoiceActivity activity = client;
+            if (activity != null)
+                activity.onEvent(eventType, params);
+        }
+    };
+}
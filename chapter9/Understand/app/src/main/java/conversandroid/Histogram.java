@@ -0,0 +1,164 @@
+package conversandroid;
+
+/*
+ *  Copyright 2016 Zoraida Callejas, Michael McTear and David Griol
+ *
+ *  This file is part of the Conversandroid Toolkit, from the book:
+ *  The Conversational Interface, Michael McTear, Zoraida Callejas and David Griol
+ *  Springer 2016 <https://github.com/zoraidacallejas/ConversationalInterface/>
+ *
+ *  This program is free software: you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License as published by
+ *  the Free Software Foundation, either version 3 of the License, or
+ *  (at your option) any later version.
+
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ *  GNU General Public License for more details.
+
+ *  You should have received a copy of the GNU General Public License
+ *   along with this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+
+/**
+ * Histogram of durations, which keeps the number of values recorded in buckets of exponentially
+ * increasing width instead of the values themselves, so that its size is constant and recording a value
+ * does not allocate memory. Each power of two is divided in SUB_BUCKETS buckets, so the percentiles
+ * obtained are within 1/SUB_BUCKETS (12.5%) of the actual values.
+ *
+ * Durations are recorded in microseconds.
+ *
+ * @author Michael McTear, Zoraida Callejas and David Griol
+ * @version 4.0, 02/13/16
+ *
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    private final String name;
+    private final long[] counts = new long[(64 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS];
+    private long count = 0;
+    private long sum = 0;
+    private long min = Long.MAX_VALUE;
+    private long max = 0;
+
+    Histogram(String name) {
+        this.name = name;
+    }
+
+    /**
+     * @return name of the histogram
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Records a duration
+     * @param micros duration in microseconds (negative values are recorded as 0)
+     */
+    public synchronized void record(long micros) {
+        long value = Math.max(0, micros);
+        counts[bucket(value)]++;
+        count++;
+        sum += value;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+    }
+
+    /**
+     * @return number of values recorded
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * @return mean of the values recorded in microseconds, or 0 if there are none
+     */
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * @return minimum value recorded in microseconds, or 0 if there are none
+     */
+    public synchronized long getMin() {
+        return count == 0 ? 0 : min;
+    }
+
+    /**
+     * @return maximum value recorded in microseconds, or 0 if there are none
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Approximates a percentile with the upper bound of the bucket in which it falls
+     * @param percentile between 0 and 100 (e.g. 99 for the 99th percentile)
+     * @return value in microseconds, or 0 if there are no values
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0)
+            return 0;
+        long rank = (long) Math.ceil(count * Math.min(100, Math.max(0, percentile)) / 100.0);
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= Math.max(1, rank))
+                return Math.min(max, Math.max(min, upperBound(i)));
+        }
+        return max;
+    }
+
+    /**
+     * Removes all the values
+     */
+    public synchronized void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        sum = 0;
+        min = Long.MAX_VALUE;
+        max = 0;
+    }
+
+    /**
+     * @return summary of the histogram in milliseconds, e.g. "pandora.total n=10 mean=120.5 p50=110.0 p90=200.0 p99=250.0 max=251.3 ms"
+     */
+    @Override
+    public synchronized String toString() {
+        return name + " n=" + count + " mean=" + millis(getMean()) + " p50=" + millis(getPercentile(50))
+                + " p90=" + millis(getPercentile(90)) + " p99=" + millis(getPercentile(99)) + " max=" + millis(max) + " ms";
+    }
+
+    private static String millis(long micros) {
+        return String.valueOf(micros / 1000) + "." + (micros % 1000) / 100;
+    }
+
+    /**
+     * Values below SUB_BUCKETS have their own bucket, the rest are grouped by their highest bit and
+     * the following SUB_BUCKET_BITS bits
+     */
+    private static int bucket(long value) {
+        if (value < SUB_BUCKETS)
+            return (int) value;
+        int highestBit = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (highestBit - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (highestBit - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBound(int bucket) {
+        if (bucket < SUB_BUCKETS)
+            return bucket;
+        int highestBit = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long subBucket = bucket % SUB_BUCKETS;
+        return ((SUB_BUCKETS + subBucket + 1) << (highestBit - SUB_BUCKET_BITS)) - 1;
+    }
+}
@@ -21,11 +21,13 @@ package conversandroid;
  *   along with this program. If not, see <http://www.gnu.org/licenses/>.
  */
 
+import android.annotation.SuppressLint;
 import android.content.Context;
 import android.graphics.PorterDuff;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
 import android.os.AsyncTask;
+import android.os.Build;
 import android.os.Bundle;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
@@ -39,6 +41,7 @@ import android.widget.Toast;
 import com.google.gson.JsonElement;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.Map;
 
@@ -73,6 +76,14 @@ public class MainActivity extends VoiceActivity {
 	private static Integer ID_PROMPT_INFO = 1;	//Id chosen to identify the prompts that involve only informing the user
 	private long startListeningTime = 0; // To skip errors (see processAsrError method)
 
+	private static final boolean SPECULATIVE_QUERIES = false; //Send the partial recognition results to api.ai while the user is speaking (extra requests)
+	private static final int STABLE_PARTIALS = 2; //Consecutive identical partial results before sending them
+	private static final int MAX_SPECULATIONS = 2; //Speculative queries sent per turn
+	private SLUTask speculativeTask = null; //Query sent with a partial result
+
+	private final MetricsRegistry metrics = MetricsRegistry.getDefault();
+	private int speculations = 0;
+
 	/**
 	 * Sets up the activity initializing the GUI, the ASR and TTS
 	 */
@@ -86,6 +97,7 @@ public class MainActivity extends VoiceActivity {
 
 		//Initialize the speech recognizer and synthesizer
 		initSpeechInputOutput(this);
+		setPartialResults(SPECULATIVE_QUERIES, STABLE_PARTIALS);
 
 		//Set up the speech button
 		setSpeakButton();
@@ -187,6 +199,8 @@ public class MainActivity extends VoiceActivity {
 	@Override
 	public void processAsrError(int errorCode) {
 		changeButtonAppearanceToDefault();
+		discardSpeculation(); //The result of the partial results will not be used
+		resetSpeculation();
 
 		//Possible bug in Android SpeechRecognizer: NO_MATCH errors even before the the ASR
 		// has even tried to recognized. We have adopted the solution proposed in:
@@ -224,7 +238,7 @@ public class MainActivity extends VoiceActivity {
                 Log.e(LOGTAG, "Error when attempting to listen: " + errorMsg);
 
                 try {
-                    speak(errorMsg, "EN", ID_PROMPT_INFO);
+                    speakPrompt(errorMsg, "EN", ID_PROMPT_INFO);
                 } catch (Exception e) {
                     Log.e(LOGTAG, "English not available for TTS, default language used instead");
                 }
@@ -237,7 +251,33 @@ public class MainActivity extends VoiceActivity {
 	public void processAsrReadyForSpeech() { }
 
 	/**
-	 * Sends the best recognition result to api.ai
+	 * Records the gap between turns when listening continuously
+	 */
+	@Override
+	public void processAsrTurnGap(long micros) {
+		metrics.record("asr.turn_gap", micros);
+	}
+
+	/**
+	 * Sends the best partial recognition result to api.ai when it is stable, i.e. the ASR has provided the same text
+	 * in STABLE_PARTIALS consecutive partial results, so that the semantic parsing may be ready when the final result
+	 * is obtained. At most MAX_SPECULATIONS queries are sent per turn, as they may change the contexts of the session
+	 */
+	@Override
+	public void processAsrPartialResults(List<String> nBestList, boolean stable) {
+		String partialQuery = nBestList.get(0).trim();
+		if (stable && speculations < MAX_SPECULATIONS
+				&& (speculativeTask == null || !speculativeTask.query.equalsIgnoreCase(partialQuery))) {
+			discardSpeculation();
+			speculations++;
+			speculativeTask = apiSLU(partialQuery, false);
+			Log.d(LOGTAG, "Speculative query: " + partialQuery);
+		}
+	}
+
+	/**
+	 * Sends the best recognition result to api.ai, or shows the result of the speculative query
+	 * if it was sent with the same text
 	 */
 	@Override
 	public void processAsrResults(ArrayList<String> nBestList, float[] nBestConfidences) {
@@ -246,79 +286,162 @@ public class MainActivity extends VoiceActivity {
 			if (nBestList.size() > 0) {
 				String userQuery = nBestList.get(0); //We will use the best result
 				changeButtonAppearanceToDefault();
-				apiSLU(userQuery);
+
+				SLUTask speculation = speculativeTask;
+				speculativeTask = null;
+				resetSpeculation();
+				if (speculation != null && speculation.query.equalsIgnoreCase(userQuery.trim()) && speculation.use()) {
+					Log.d(LOGTAG, "Speculative query used for: " + userQuery);
+				} else {
+					if (speculation != null)
+						speculation.cancel(false);
+					apiSLU(userQuery, true);
+				}
 			}
 		}
 	}
 
+	/**
+	 * Discards the speculative query, if any
+	 */
+	private void discardSpeculation() {
+		if (speculativeTask != null) {
+			speculativeTask.cancel(false);
+			speculativeTask = null;
+		}
+	}
+
+	/**
+	 * Starts a new turn without partial results
+	 */
+	private void resetSpeculation() {
+		speculations = 0;
+	}
+
 	/**
 	 * Connects to api.ai and indicates how to process the response with the semantic parsing
 	 * @param userQuery recognized utterance
+	 * @param show true to show the result, false if it is a speculative query whose result is only shown
+	 *             if <code>use</code> is invoked
+	 * @return task that connects to api.ai
      */
-	private void apiSLU(String userQuery) {
+	@SuppressLint("NewApi")
+	private SLUTask apiSLU(String userQuery, boolean show) {
+		SLUTask task = new SLUTask(userQuery, show);
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB)
+			task.executeOnExecutor(AsyncTask.THREAD_POOL_EXECUTOR, userQuery); //Speculative and final queries are not serialized
+		else
+			task.execute(userQuery);
+		return task;
+	}
+
+	/**
+	 * Connects to the api.ai service in background and shows the semantic parsing
+	 */
+	private class SLUTask extends AsyncTask<String,Void,AIResponse> {
 
-		new AsyncTask<String,Void,AIResponse>() {
+		final String query;
+		private boolean show;			//Whether the result must be shown when it is obtained
+		private boolean finished = false;
+		private AIResponse response = null;
 
-            /**
-             * Connects to the api.ai service
-             * @param strings Contains the user request
-             * @return language understanding result
-             */
-			@Override
-			protected AIResponse doInBackground(String... strings) {
-				final String request = strings[0];
-				try {
-					final AIRequest aiRequest = new AIRequest(request);
-					final AIResponse response = aiDataService.request(aiRequest);
-					Log.d(LOGTAG,"Request: "+aiRequest);
-					Log.d(LOGTAG,"Response: "+response);
-
-
-					return response;
-				} catch (AIServiceException e) {
-                    try {
-                        speak("Could not retrieve a response from API.AI", "EN", ID_PROMPT_INFO);
-                        Log.e(LOGTAG,"Problems retrieving a response");
-                    } catch (Exception ex) {
-                        Log.e(LOGTAG, "English not available for TTS, default language used instead");
-                    }
-				}
-				return null;
+		SLUTask(String query, boolean show) {
+			this.query = query.trim();
+			this.show = show;
+		}
+
+		/**
+		 * Uses the result of a speculative query: it is shown now if it has already been obtained, or when
+		 * it is obtained otherwise. It must be invoked from the main thread
+		 * @return false if the query failed and it must be sent again
+		 */
+		boolean use() {
+			if (!finished) {
+				show = true;
+				return true;
 			}
+			if (response == null)
+				return false;
+			showResult(response);
+			return true;
+		}
 
-			/**
-			 * The semantic parsing is decomposed in its different elements and shown in a textview
-			 * @param aiResponse semantic parsing
-             */
-			@Override
-			protected void onPostExecute(AIResponse aiResponse) {
-				if (aiResponse != null) {
-					// process aiResponse here
-					// extracts intent and parameters - we can change this to do other things
-
-					Result result = aiResponse.getResult();
-					Log.d(LOGTAG,"Result: "+result);
-					Log.d(LOGTAG,"Parameters: "+result.getParameters());
-
-					// Get parameters
-					String parameterString = "";
-					if (result.getParameters() != null && !result.getParameters().isEmpty()) {
-						for (final Map.Entry<String, JsonElement> entry : result.getParameters().entrySet()) {
-							parameterString += "(" + entry.getKey() + ", " + entry.getValue() + ") ";
-						}
+		/**
+		 * Connects to the api.ai service.
+		 *
+		 * The duration of the request is recorded in the "apiai.end_to_end" histogram. It is only an end-to-end
+		 * measure: AIDataService resolves the host, connects to the service and parses the response internally,
+		 * so the phases of the request (DNS, connection, TLS, time to first byte, parse) cannot be measured
+		 * @param strings Contains the user request
+		 * @return language understanding result
+		 */
+		@Override
+		protected AIResponse doInBackground(String... strings) {
+			final String request = strings[0];
+			long start = System.nanoTime();
+			try {
+				final AIRequest aiRequest = new AIRequest(request);
+				final AIResponse response = aiDataService.request(aiRequest);
+				Log.d(LOGTAG,"Request: "+aiRequest);
+				Log.d(LOGTAG,"Response: "+response);
 
-					}
 
-                    Log.d(LOGTAG,parameterString);
-					// Show results in TextView.
-					resultTextView.setText("Query:" + result.getResolvedQuery() +
-							"\nAction: " + result.getAction() +
-							"\nParameters: " + parameterString);
+				return response;
+			} catch (AIServiceException e) {
+				Log.e(LOGTAG,"Problems retrieving a response");
+			} finally {
+				metrics.recordSince("apiai.end_to_end", start);
+			}
+			return null;
+		}
 
-				}
+		/**
+		 * The semantic parsing is shown, unless it is the result of a speculative query that has not been used
+		 * @param aiResponse semantic parsing
+		 */
+		@Override
+		protected void onPostExecute(AIResponse aiResponse) {
+			finished = true;
+			response = aiResponse;
+			if (show) {
+				if (aiResponse != null)
+					showResult(aiResponse);
+				else
+					try {
+						speak("Could not retrieve a response from API.AI", "EN", ID_PROMPT_INFO);
+					} catch (Exception ex) {
+						Log.e(LOGTAG, "English not available for TTS, default language used instead");
+					}
+			}
+		}
+	}
+
+	/**
+	 * The semantic parsing is decomposed in its different elements and shown in a textview
+	 * @param aiResponse semantic parsing
+	 */
+	private void showResult(AIResponse aiResponse) {
+		// process aiResponse here
+		// extracts intent and parameters - we can change this to do other things
+
+		Result result = aiResponse.getResult();
+		Log.d(LOGTAG,"Result: "+result);
+		Log.d(LOGTAG,"Parameters: "+result.getParameters());
+
+		// Get parameters
+		String parameterString = "";
+		if (result.getParameters() != null && !result.getParameters().isEmpty()) {
+			for (final Map.Entry<String, JsonElement> entry : result.getParameters().entrySet()) {
+				parameterString += "(" + entry.getKey() + ", " + entry.getValue() + ") ";
 			}
-		}.execute(userQuery);
 
+		}
+
+		Log.d(LOGTAG,parameterString);
+		// Show results in TextView.
+		resultTextView.setText("Query:" + result.getResolvedQuery() +
+				"\nAction: " + result.getAction() +
+				"\nParameters: " + parameterString);
 	}
 
 	/**
@@ -339,6 +462,7 @@ public class MainActivity extends VoiceActivity {
 	public void onDestroy() {
 		super.onDestroy();
 		shutdown();
+		metrics.dump(LOGTAG);
 	}
 
 	/**
@@ -25,19 +25,21 @@ package conversandroid;
 import android.Manifest;
 import android.annotation.SuppressLint;
 import android.app.Activity;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.ServiceConnection;
 import android.content.pm.PackageManager;
-import android.content.pm.ResolveInfo;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.SystemClock;
 import android.speech.RecognitionListener;
 import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 import android.speech.tts.TextToSpeech;
 import android.speech.tts.TextToSpeech.OnInitListener;
-import android.speech.tts.TextToSpeech.OnUtteranceCompletedListener;
-import android.speech.tts.UtteranceProgressListener;
 import android.support.v4.app.ActivityCompat;
 import android.support.v4.content.ContextCompat;
 import android.util.Log;
@@ -52,6 +54,11 @@ import java.util.Locale;
  * It contains abstract methods for processing the ASR and TTS events that may occur, which may be implemented
  * in a non-abstract subclass to carry out a detailed management.
  *
+ * The engines are owned by a <code>VoiceRuntimeService</code>, which is shared by the activities of the app and
+ * keeps them while an activity is recreated (e.g. when the device is rotated), so that they are not created again.
+ * The service is bound asynchronously, so the invocations to <code>speak</code> and <code>listen</code> before it
+ * is connected are carried out as soon as it is.
+ *
  * @author Zoraida Callejas, Michael McTear, David Griol
  * @version 3.0, 02/14/16
  *
@@ -67,6 +74,73 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
     private TextToSpeech myTTS;
     Activity ctx;
 
+    private VoiceRuntimeService runtime = null; //Service that owns the engines, null until it is connected
+    private boolean bound = false;
+    private final List<Runnable> pending = new ArrayList<Runnable>(); //Invocations waiting for the service
+
+    //Codes of the last locale requested and the locale they correspond to (null if it is not available),
+    //so that the availability of the language is not checked for each utterance
+    private String localeLanguageCode = null;
+    private String localeCountryCode = null;
+    private Locale locale = null;
+    private boolean localeResolved = false;
+
+    private final HashMap<String, String> params = new HashMap<String, String>(); //Parameters of the utterances, reused
+    private Integer paramsId = null; //Utterance id in params
+
+    private boolean chunkedSpeech = false; //Whether long texts are sent to the TTS in chunks
+    private static final int MIN_CLAUSE_CHUNK = 24; //Characters before a clause boundary (e.g. a comma) can end a chunk
+    private static final int MAX_CHUNK = 240; //Characters in a chunk without boundaries, it is split at a space
+
+    private final ServiceConnection connection = new ServiceConnection() {
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            runtime = ((VoiceRuntimeService.LocalBinder) service).getService();
+            myTTS = runtime.getTextToSpeech();
+            myASR = runtime.getSpeechRecognizer();
+            runtime.attach(VoiceActivity.this);
+
+            List<Runnable> actions = new ArrayList<Runnable>(pending);
+            pending.clear();
+            for (Runnable action : actions)
+                action.run();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+            runtime = null;
+            myTTS = null;
+            myASR = null;
+        }
+    };
+
+    private boolean partialResults = false; //Whether the ASR provides partial results while the user is speaking
+    private int stablePartials = 2; //Consecutive partial results with the same text for it to be stable
+    private String lastPartial = null; //Best partial result of the current recognition
+    private int partialRepetitions = 0; //Consecutive partial results with the text of lastPartial
+
+    private boolean bargeIn = false; //Whether the user can interrupt the TTS by speaking
+    private float bargeInRms = 8f; //Level of the microphone (dB) that interrupts the TTS
+    private static final int BARGE_IN_FRAMES = 3; //Consecutive RMS values over bargeInRms to interrupt the TTS
+    private int loudFrames = 0;
+
+    private AdaptiveEndpointer endpointer = null; //Detects the end of the utterances before the ASR, null if disabled
+    private boolean endpointerActive = false; //False while the TTS is speaking in barge-in mode, as the ASR may hear it
+
+    private boolean continuous = false; //Whether the recognition is restarted automatically after each turn
+    private Intent continuousIntent = null; //Recognition intent reused in all the turns of the continuous mode
+    private final Handler handler = new Handler();
+    private long turnEnd = 0; //Time (nanoTime) when the last turn ended, 0 if the recognition has already restarted
+    private int busyRetries = 0; //Consecutive restarts in which the recognizer was busy
+    private static final long BUSY_BACKOFF = 100; //Milliseconds before retrying when the recognizer is busy, doubled each time
+    private static final int MAX_BUSY_RETRIES = 5;
+    private static final long TTS_POLL = 100; //Milliseconds between checks of the TTS before restarting the recognition
+    private final Runnable restart = new Runnable() {
+        public void run() {
+            restartListening();
+        }
+    };
+
     private static final String LOGTAG = "VOICEACTIVITY";
 
 
@@ -79,26 +153,29 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
  **********************************************************************************************************************************************************************/
 
     /**
-     * Creates the speech recognizer and text-to-speech synthesizer instances
+     * Connects to the service that owns the speech recognizer and text-to-speech synthesizer instances,
+     * which creates them the first time
      * @see RecognitionListener.java
      * @param ctx context of the interaction
      * */
     public void initSpeechInputOutput(Activity ctx) {
 
         this.ctx = ctx;
-        PackageManager packManager = ctx.getPackageManager();
 
-        setTTS();
+        Intent intent = new Intent(ctx, VoiceRuntimeService.class);
+        ctx.startService(intent); //So that the engines are kept while the activity is recreated
+        bound = ctx.bindService(intent, connection, Context.BIND_AUTO_CREATE);
+    }
 
-        // Find out whether speech recognition is supported
-        List<ResolveInfo> intActivities = packManager.queryIntentActivities(
-                new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH), 0);
-        if (intActivities.size() != 0 || "generic".equals(Build.BRAND.toLowerCase(Locale.US))) {
-            myASR = SpeechRecognizer.createSpeechRecognizer(ctx);
-            myASR.setRecognitionListener(this);
-        }
-        else
-            myASR = null;
+    /**
+     * Runs an invocation now if the service is connected, or when it is connected otherwise
+     * @return true if it has been deferred
+     */
+    private boolean deferUntilConnected(Runnable action) {
+        if (runtime != null)
+            return false;
+        pending.add(action);
+        return true;
     }
 
     /**
@@ -154,6 +231,133 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
     public abstract void onRecordAudioPermissionDenied();
 
 
+    /**
+     * Indicates whether the ASR must provide partial results while the user is still speaking.
+     * When enabled, they are passed to <code>processAsrPartialResults</code> before the final results
+     * are passed to <code>processAsrResults</code>. It is used from the next invocation to <code>listen</code>
+     *
+     * @param partialResults true to receive partial results, false otherwise (default)
+     */
+    public void setPartialResults(boolean partialResults) {
+        this.partialResults = partialResults;
+    }
+
+    /**
+     * Indicates whether the ASR must provide partial results, and when they are considered stable
+     *
+     * @param partialResults true to receive partial results, false otherwise (default)
+     * @param stablePartials number of consecutive partial results in which the best result must have the same text
+     *                       (ignoring case and spaces) to be stable (2 by default)
+     */
+    public void setPartialResults(boolean partialResults, int stablePartials) {
+        this.partialResults = partialResults;
+        this.stablePartials = Math.max(1, stablePartials);
+    }
+
+    /**
+     * Indicates whether the user can interrupt the TTS by speaking (barge-in). Then, <code>listen</code> can be
+     * invoked while the TTS is speaking (e.g. in <code>onTTSStart</code>), and the TTS is stopped as soon as the ASR
+     * detects the beginning of speech, or the level of the microphone is over a threshold during several consecutive
+     * RMS values, so that the user does not have to wait until the end of the prompt.
+     * <code>processAsrBargeIn</code> is invoked when the TTS is interrupted
+     *
+     * @param bargeIn true to allow interrupting the TTS, false otherwise (default)
+     */
+    public void setBargeIn(boolean bargeIn) {
+        this.bargeIn = bargeIn;
+    }
+
+    /**
+     * Indicates whether the user can interrupt the TTS by speaking, and the level of the microphone that interrupts it.
+     * It must be over the level of the prompts captured by the microphone, which depends on the device
+     *
+     * @param bargeIn true to allow interrupting the TTS, false otherwise (default)
+     * @param rmsThreshold level of the microphone in dB, as provided to <code>onRmsChanged</code> (8 by default)
+     */
+    public void setBargeIn(boolean bargeIn, float rmsThreshold) {
+        this.bargeIn = bargeIn;
+        this.bargeInRms = rmsThreshold;
+    }
+
+    /**
+     * Stops the TTS if it is speaking when the user starts speaking, in barge-in mode
+     */
+    private void bargeIn() {
+        loudFrames = 0;
+        if (myTTS != null && myTTS.isSpeaking()) {
+            stop();
+            if (endpointer != null) { //The levels of the microphone are not affected by the TTS from now on
+                endpointer.reset();
+                endpointerActive = true;
+            }
+            Log.d(LOGTAG, "TTS interrupted by the user");
+            processAsrBargeIn();
+        }
+    }
+
+    /**
+     * Indicates whether the end of the user utterances is detected from the level of the microphone, stopping the
+     * recognition as soon as the user stops speaking instead of waiting for the end of speech detection of the ASR,
+     * which usually requires a longer silence. An <code>AdaptiveEndpointer</code> with 600 ms of silence (up to
+     * 1500 ms when the user makes pauses) and 200 ms of speech is used. It is used from the next recognition
+     *
+     * @param adaptiveEndpointing true to detect the end of the utterances, false to leave it to the ASR (default)
+     */
+    public void setAdaptiveEndpointing(boolean adaptiveEndpointing) {
+        endpointer = adaptiveEndpointing ? new AdaptiveEndpointer(600, 1500, 200) : null;
+    }
+
+    /**
+     * Indicates the parameters of the detection of the end of the user utterances from the level of the microphone
+     * (see <code>AdaptiveEndpointer</code>), which is enabled
+     *
+     * @param minSilence milliseconds of silence after the speech that end an utterance without pauses
+     * @param maxSilence maximum milliseconds of silence required, when the user makes pauses
+     * @param minSpeech milliseconds of speech before the end of the utterance can be detected
+     */
+    public void setAdaptiveEndpointing(long minSilence, long maxSilence, long minSpeech) {
+        endpointer = new AdaptiveEndpointer(minSilence, maxSilence, minSpeech);
+    }
+
+    /**
+     * Starts speech recognition after checking the ASR parameters, indicating to the ASR how the end of the utterance
+     * is detected. Each value that is not positive is not indicated, so the default of the ASR is used
+     * (the ASR may also ignore them)
+     *
+     * @param language Language used for speech recognition (e.g. Locale.ENGLISH)
+     * @param languageModel Type of language model used (free form or web search)
+     * @param maxResults Maximum number of recognition results
+     * @param completeSilence milliseconds of silence after the speech to consider that the input is complete
+     * @param possiblyCompleteSilence milliseconds of silence after the speech to consider that the input may be complete
+     * @param minimumLength minimum milliseconds of the recording
+     * @exception An exception is raised if the language specified is not available or the other parameters are not valid
+     */
+    public void listen(final Locale language, final String languageModel, final int maxResults, final long completeSilence,
+                       final long possiblyCompleteSilence, final long minimumLength) throws Exception
+    {
+        checkASRPermission();
+
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                try {
+                    listen(language, languageModel, maxResults, completeSilence, possiblyCompleteSilence, minimumLength);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Speech recognition could not be started: " + e.getMessage());
+                }
+            }
+        }))
+            return;
+
+        Intent intent = buildRecognizerIntent(language, languageModel, maxResults);
+        if (completeSilence > 0)
+            intent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS, completeSilence);
+        if (possiblyCompleteSilence > 0)
+            intent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_POSSIBLY_COMPLETE_SILENCE_LENGTH_MILLIS, possiblyCompleteSilence);
+        if (minimumLength > 0)
+            intent.putExtra(RecognizerIntent.EXTRA_SPEECH_INPUT_MINIMUM_LENGTH_MILLIS, minimumLength);
+        startRecognition(intent);
+    }
+
     /**
      * Starts speech recognition after checking the ASR parameters
      *
@@ -166,6 +370,26 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
     {
         checkASRPermission();
 
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                try {
+                    listen(language, languageModel, maxResults);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "Speech recognition could not be started: " + e.getMessage());
+                }
+            }
+        }))
+            return;
+
+        startRecognition(buildRecognizerIntent(language, languageModel, maxResults));
+    }
+
+    /**
+     * Creates the intent for the speech recognizer after checking the ASR parameters
+     * @exception An exception is raised if the parameters are not valid
+     */
+    private Intent buildRecognizerIntent(Locale language, String languageModel, int maxResults) throws Exception
+    {
         if((languageModel.equals(RecognizerIntent.LANGUAGE_MODEL_FREE_FORM) || languageModel.equals(RecognizerIntent.LANGUAGE_MODEL_WEB_SEARCH)) && (maxResults>=0))
         {
             Intent intent = new Intent(RecognizerIntent.ACTION_RECOGNIZE_SPEECH);
@@ -183,8 +407,11 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
             // Specify recognition language
             intent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, language);
 
-            myASR.startListening(intent);
+            // Specify whether to receive partial results (the ASR may ignore it)
+            if (partialResults)
+                intent.putExtra(RecognizerIntent.EXTRA_PARTIAL_RESULTS, true);
 
+            return intent;
         }
         else {
             Log.e(LOGTAG, "Invalid params to listen method");
@@ -196,11 +423,98 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
 
 
 
+    /**
+     * Starts a recognition with the intent indicated
+     */
+    private void startRecognition(Intent intent) {
+        lastPartial = null;
+        partialRepetitions = 0;
+        loudFrames = 0;
+        if (endpointer != null) {
+            endpointer.reset();
+            endpointerActive = !bargeIn || myTTS == null || !myTTS.isSpeaking();
+        }
+        myASR.startListening(intent);
+    }
+
+    /**
+     * Starts listening continuously (hands-free): the recognition is restarted automatically after the results
+     * of each turn are processed in <code>processAsrResults</code>, and after the errors that are frequent when the
+     * user does not say anything (no match and speech timeout), which are not passed to <code>processAsrError</code>.
+     * When the recognizer is busy, it is retried after a short time that doubles with each attempt.
+     * Other errors end the continuous mode and are passed to <code>processAsrError</code>.
+     *
+     * The same speech recognizer and intent are used in all the turns. Unless barge-in is enabled, the recognition
+     * is restarted when the TTS has finished speaking, so that the ASR does not listen to the prompts (thus, the
+     * answers to the user should be sent to the TTS in <code>processAsrResults</code>, or barge-in should be enabled).
+     * The time between the end of a turn and the moment in which the ASR is ready for the next one is passed to
+     * <code>processAsrTurnGap</code>
+     *
+     * @param language Language used for speech recognition (e.g. Locale.ENGLISH)
+     * @param languageModel Type of language model used (free form or web search)
+     * @param maxResults Maximum number of recognition results
+     * @exception An exception is raised if the parameters are not valid
+     */
+    public void startContinuousListening(Locale language, String languageModel, int maxResults) throws Exception
+    {
+        checkASRPermission();
+
+        continuousIntent = buildRecognizerIntent(language, languageModel, maxResults);
+        continuous = true;
+        busyRetries = 0;
+        turnEnd = 0;
+        handler.removeCallbacks(restart);
+
+        if (deferUntilConnected(restart))
+            return;
+        startRecognition(continuousIntent);
+    }
+
+    /**
+     * Ends the continuous mode, cancelling the current recognition
+     */
+    public void stopContinuousListening() {
+        continuous = false;
+        handler.removeCallbacks(restart);
+        if (myASR != null)
+            myASR.cancel();
+    }
+
+    /**
+     * @return true if the continuous mode is active
+     */
+    public boolean isListeningContinuously() {
+        return continuous;
+    }
+
+    /**
+     * Restarts the recognition in continuous mode after the delay indicated
+     */
+    private void scheduleRestart(long delay) {
+        if (turnEnd == 0)
+            turnEnd = System.nanoTime();
+        handler.removeCallbacks(restart);
+        handler.postDelayed(restart, delay);
+    }
+
+    /**
+     * Starts the next turn of the continuous mode, when the TTS is not speaking (unless barge-in is enabled)
+     */
+    private void restartListening() {
+        if (!continuous || myASR == null)
+            return;
+        if (!bargeIn && myTTS != null && myTTS.isSpeaking())
+            handler.postDelayed(restart, TTS_POLL);
+        else
+            startRecognition(continuousIntent);
+    }
+
     /**
      * Stops listening to the user
      */
     public void stopListening(){
-        myASR.stopListening();
+        if (myASR != null)
+            myASR.stopListening();
     }
 
     /********************************************************************************************************
@@ -234,7 +548,10 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
         }
         else
             //Processes recognition errors
-            processAsrError(SpeechRecognizer.ERROR_NO_MATCH);
+            onError(SpeechRecognizer.ERROR_NO_MATCH);
+
+        if (continuous && results != null)
+            scheduleRestart(0);
     }
 
     /*
@@ -246,6 +563,12 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      */
     @Override
     public void onReadyForSpeech(Bundle arg0) {
+        busyRetries = 0;
+        if (turnEnd != 0) { //Continuous mode
+            long gap = (System.nanoTime() - turnEnd) / 1000;
+            turnEnd = 0;
+            processAsrTurnGap(gap);
+        }
         processAsrReadyForSpeech();
     }
 
@@ -258,6 +581,28 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      */
     @Override
     public void onError(int errorCode) {
+        if (continuous) {
+            switch (errorCode) {
+                case SpeechRecognizer.ERROR_NO_MATCH:
+                case SpeechRecognizer.ERROR_SPEECH_TIMEOUT: //The user has not said anything, the next turn starts
+                    scheduleRestart(0);
+                    return;
+
+                case SpeechRecognizer.ERROR_RECOGNIZER_BUSY:
+                case SpeechRecognizer.ERROR_CLIENT: //The previous recognition has not been released yet
+                    if (busyRetries < MAX_BUSY_RETRIES && myASR != null) {
+                        myASR.cancel();
+                        scheduleRestart(BUSY_BACKOFF << busyRetries++);
+                        return;
+                    }
+                    break;
+
+                default:
+                    break;
+            }
+            continuous = false;
+            handler.removeCallbacks(restart);
+        }
         processAsrError(errorCode);
     }
 
@@ -266,7 +611,10 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      * @see android.speech.RecognitionListener#onBeginningOfSpeech()
      */
     @Override
-    public void onBeginningOfSpeech() {	}
+    public void onBeginningOfSpeech() {
+        if (bargeIn)
+            bargeIn();
+    }
 
     /*
      * (non-Javadoc)
@@ -294,14 +642,77 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      * @see android.speech.RecognitionListener#onPartialResults(android.os.Bundle)
      */
     @Override
-    public void onPartialResults(Bundle arg0) {}
+    public void onPartialResults(Bundle partialResults) {
+        if (partialResults != null) {
+            ArrayList<String> nBestList = partialResults.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+            if (nBestList != null && nBestList.size() > 0)
+                processAsrPartialResults(nBestList, isStable(nBestList.get(0)));
+        }
+    }
+
+    /**
+     * Tracks the best partial results of the current recognition
+     * @return true if the text has been the best result in the last <code>stablePartials</code> partial results
+     */
+    private boolean isStable(String partial) {
+        if (sameWords(partial, lastPartial)) {
+            partialRepetitions++;
+        } else {
+            lastPartial = partial;
+            partialRepetitions = 1;
+        }
+        return partialRepetitions >= stablePartials && lastPartial.trim().length() > 0;
+    }
+
+    /**
+     * @return true if both texts have the same words, ignoring case and the spaces between them
+     */
+    private static boolean sameWords(String a, String b) {
+        if (a == null || b == null)
+            return a == b;
+
+        int i = 0;
+        int j = 0;
+        boolean first = true;
+        while (true) {
+            boolean spaceA = false;
+            while (i < a.length() && Character.isWhitespace(a.charAt(i))) {
+                i++;
+                spaceA = true;
+            }
+            boolean spaceB = false;
+            while (j < b.length() && Character.isWhitespace(b.charAt(j))) {
+                j++;
+                spaceB = true;
+            }
+            if (i == a.length() || j == b.length())
+                return i == a.length() && j == b.length();
+            if (spaceA != spaceB && !first) //A space between words in one of them only
+                return false;
+            first = false;
+            char ca = a.charAt(i++);
+            char cb = b.charAt(j++);
+            if (ca != cb && Character.toLowerCase(ca) != Character.toLowerCase(cb))
+                return false;
+        }
+    }
 
     /*
  * (non-Javadoc)
  * @see android.speech.RecognitionListener#onRmsChanged(float)
  */
     @Override
-    public void onRmsChanged(float arg0) {
+    public void onRmsChanged(float rmsdB) {
+        if (bargeIn) {
+            if (rmsdB < bargeInRms)
+                loudFrames = 0;
+            else if (++loudFrames >= BARGE_IN_FRAMES)
+                bargeIn();
+        }
+        if (endpointer != null && endpointerActive && endpointer.onRms(rmsdB, SystemClock.uptimeMillis())) {
+            Log.d(LOGTAG, "End of speech detected (noise floor " + endpointer.getNoiseFloor() + " dB)");
+            stopListening();
+        }
     }
 
     /**
@@ -311,6 +722,31 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      */
     public abstract void processAsrResults(ArrayList<String> nBestList, float [] nBestConfidences);
 
+    /**
+     * Processes the partial recognition results obtained while the user is speaking, when
+     * they have been requested with <code>setPartialResults</code>, e.g. to start processing the
+     * user input before the end of the speech. By default it does nothing
+     * @param nBestList	List of the N partial recognition results
+     * @param stable true if the best result has not changed in the last partial results, so it is
+     *               likely to be the final one (see <code>setPartialResults</code>)
+     */
+    public void processAsrPartialResults(List<String> nBestList, boolean stable) { }
+
+    /**
+     * Processes the situation in which the user interrupts the TTS by speaking, when barge-in has
+     * been enabled with <code>setBargeIn</code>. The TTS has already been stopped. By default it does nothing
+     */
+    public void processAsrBargeIn() { }
+
+    /**
+     * Processes the time between the end of a turn and the moment in which the ASR is ready to listen
+     * in the next one, in continuous mode. By default it writes it in the log
+     * @param micros duration of the gap in microseconds
+     */
+    public void processAsrTurnGap(long micros) {
+        Log.d(LOGTAG, "Gap between turns: " + (micros / 1000) + " ms");
+    }
+
     /**
      * Processes the situation in which the ASR engine is ready to listen
      */
@@ -333,60 +769,6 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
  **********************************************************************************************************************************************************************
  **********************************************************************************************************************************************************************/
 
-    /**
-     * Starts the TTS engine. It is work-around to avoid implementing the UtteranceProgressListener abstract class.
-     *
-     * @author Method by Greg Milette (comments incorporated by us). Source: https://github.com/gast-lib/gast-lib/blob/master/library/src/root/gast/speech/voiceaction/VoiceActionExecutor.java
-     * @see See the problem here: http://stackoverflow.com/questions/11703653/why-is-utteranceprogresslistener-not-an-interface
-     */
-    @SuppressLint("NewApi")
-    @SuppressWarnings("deprecation")
-    public void setTTS()
-    {
-        myTTS = new TextToSpeech(ctx,(OnInitListener) this);
-
-		/*
-		 * The listener for the TTS events varies depending on the Android version used:
-		 * the most updated one is UtteranceProgressListener, but in SKD versions
-		 * 15 or earlier, it is necessary to use the deprecated OnUtteranceCompletedListener
-		 */
-
-        if (Build.VERSION.SDK_INT >= 15)
-        {
-            myTTS.setOnUtteranceProgressListener(new UtteranceProgressListener()
-            {
-                @Override
-                public void onDone(String utteranceId) //TTS finished synthesizing
-                {
-                    onTTSDone(utteranceId);
-                }
-
-                @Override
-                public void onError(String utteranceId) //TTS encountered an error while synthesizing
-                {
-                    onTTSError(utteranceId);
-                }
-
-                @Override
-                public void onStart(String utteranceId) //TTS has started synthesizing
-                {
-                    onTTSStart(utteranceId);
-                }
-            });
-        }
-        else
-        {
-            myTTS.setOnUtteranceCompletedListener(new OnUtteranceCompletedListener()
-            {
-                @Override
-                public void onUtteranceCompleted(final String utteranceId)
-                {
-                    onTTSDone(utteranceId);			//Earlier SDKs only consider the onTTSDone event
-                }
-            });
-        }
-    }
-
     /**
      * Invoked when the utterance uttId has successfully completed processing
      */
@@ -419,22 +801,42 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
             setLocale();
             throw new Exception("Language code was not provided, using default locale");
         }
-        else{
-            if(countryCode==null)
-                setLocale(languageCode);
-            else {
-                Locale lang = new Locale(languageCode, countryCode);
-                if (myTTS.isLanguageAvailable(lang) == TextToSpeech.LANG_COUNTRY_VAR_AVAILABLE )
-                    myTTS.setLanguage(lang);
+        else if (runtime != null) {
+            //The locale is only resolved again when the codes change
+            if (!localeResolved || !languageCode.equals(localeLanguageCode)
+                    || (countryCode == null ? localeCountryCode != null : !countryCode.equals(localeCountryCode)))
+                resolveLocale(languageCode, countryCode);
+
+            if (locale != null)
+                runtime.setLanguage(locale);
+            else
+            {
+                setLocale();
+                if (countryCode == null)
+                    throw new Exception("Language code not supported, using default locale");
                 else
-                {
-                    setLocale();
                     throw new Exception("Language or country code not supported, using default locale");
-                }
             }
         }
     }
 
+    /**
+     * Finds out whether the locale with the codes indicated is available in the TTS, in which case it is kept in
+     * <code>locale</code> (or null otherwise). With a country code, the language must be available for the country
+     */
+    private void resolveLocale(String languageCode, String countryCode) {
+        Locale lang = countryCode == null ? new Locale(languageCode) : new Locale(languageCode, countryCode);
+        int availability = runtime.isLanguageAvailable(lang);
+        if (countryCode == null)
+            locale = availability >= TextToSpeech.LANG_AVAILABLE ? lang : null;
+        else
+            locale = availability >= TextToSpeech.LANG_COUNTRY_AVAILABLE ? lang : null;
+
+        localeLanguageCode = languageCode;
+        localeCountryCode = countryCode;
+        localeResolved = runtime.isTtsReady(); //Before the initialization it must be checked again
+    }
+
     /**
      * Sets the locale for speech synthesis taking into account the language code
      * If the code is null or not valid, it uses the default language of the device
@@ -443,28 +845,116 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      * @throws Exception when the code supplied cannot be used and the default locale is selected
      */
     public void setLocale(String languageCode) throws Exception{
-        if(languageCode==null)
-        {
-            setLocale();
-            throw new Exception("Language code was not provided, using default locale");
+        setLocale(languageCode, null);
+    }
+
+    /**
+     * Sets the default language of the device as locale for speech synthesis
+     */
+    public void setLocale(){
+        if (runtime != null)
+            runtime.setLanguage(Locale.getDefault());
+    }
+
+    /**
+     * Indicates whether the texts are sent to the TTS in chunks split at the end of the sentences and clauses.
+     * The first chunk is queued at once, so the TTS starts speaking without processing the whole text, and thus
+     * the time until the user hears the first words does not depend on the length of the text.
+     * The chunks are queued with an id unique to the text, and <code>onTTSStart</code> and <code>onTTSDone</code> (or
+     * <code>onTTSError</code>) are invoked only once with the id of the text, at the start of the first chunk and the
+     * end of the last one (or the first error)
+     *
+     * @param chunkedSpeech true to speak in chunks, false to send the whole texts to the TTS (default)
+     */
+    public void setChunkedSpeech(boolean chunkedSpeech) {
+        this.chunkedSpeech = chunkedSpeech;
+    }
+
+    /**
+     * Sets the id of the utterance in the parameters for the TTS, which are reused while the id is the same
+     */
+    private void setUtteranceId(Integer id) {
+        if (!id.equals(paramsId)) {
+            params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id.toString());
+            paramsId = id;
         }
-        else {
-            Locale lang = new Locale(languageCode);
-            if (myTTS.isLanguageAvailable(lang) != TextToSpeech.LANG_MISSING_DATA && myTTS.isLanguageAvailable(lang) != TextToSpeech.LANG_NOT_SUPPORTED)
-                myTTS.setLanguage(lang);
-            else
-            {
-                setLocale();
-                throw new Exception("Language code not supported, using default locale");
+    }
+
+    /**
+     * Sends a text to the TTS, reusing the parameters of the previous utterance if it had the same id
+     */
+    private synchronized void speakNow(String text, Integer id) {
+        runtime.yieldToSpeech();
+        setUtteranceId(id);
+
+        int start = skipSpaces(text, 0);
+        if (!chunkedSpeech || start == text.length()) {
+            myTTS.speak(text, TextToSpeech.QUEUE_ADD, params);
+            return;
+        }
+
+        //Each chunk is queued as soon as its end is found, with an id unique to this utterance
+        String chunkId = runtime.beginChunks(id.toString());
+        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, chunkId);
+        paramsId = null;
+        try {
+            while (start < text.length()) {
+                int end = chunkEnd(text, start);
+                int result = myTTS.speak(text.substring(start, end), TextToSpeech.QUEUE_ADD, params);
+                runtime.onChunkQueued(chunkId, result == TextToSpeech.SUCCESS);
+                start = skipSpaces(text, end);
             }
+        } finally {
+            runtime.endChunks(chunkId);
         }
     }
 
     /**
-     * Sets the default language of the device as locale for speech synthesis
+     * @return position of the first character of the text from start that is not a white space
      */
-    public void setLocale(){
-        myTTS.setLanguage(Locale.getDefault());
+    private static int skipSpaces(String text, int start) {
+        while (start < text.length() && Character.isWhitespace(text.charAt(start)))
+            start++;
+        return start;
+    }
+
+    /**
+     * Finds the end of the chunk of the text that starts at the position indicated: the end of the first sentence
+     * or line, or of the first clause with at least <code>MIN_CLAUSE_CHUNK</code> characters. A chunk longer than
+     * <code>MAX_CHUNK</code> characters is split at its last space
+     *
+     * @return position after the last character of the chunk
+     */
+    private static int chunkEnd(String text, int start) {
+        int length = text.length();
+        int limit = Math.min(length, start + MAX_CHUNK);
+        int space = -1;
+
+        for (int i = start; i < limit; i++) {
+            char c = text.charAt(i);
+            if (c == '\n')
+                return i + 1;
+            if (Character.isWhitespace(c)) {
+                space = i;
+            } else if (i + 1 == length || Character.isWhitespace(text.charAt(i + 1))) {
+                //Punctuation followed by a space, so that decimals, times or urls are not split
+                if (c == '!' || c == '?' || c == '.' && !isAbbreviation(text, Math.max(space + 1, start), i))
+                    return i + 1;
+                if ((c == ',' || c == ';' || c == ':') && i + 1 - start >= MIN_CLAUSE_CHUNK)
+                    return i + 1;
+            }
+        }
+        if (limit == length || space <= start)
+            return limit;
+        return space;
+    }
+
+    /**
+     * @return true if the word between the positions indicated, followed by a period, looks like an abbreviation
+     * (e.g. Mr. or Dr.), so the period does not end a sentence
+     */
+    private static boolean isAbbreviation(String text, int wordStart, int period) {
+        return period - wordStart <= 3 && period > wordStart && Character.isUpperCase(text.charAt(wordStart));
     }
 
     /**
@@ -477,11 +967,20 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      * @param id integer that identifies the prompt uniquely
      * @throws Exception when the codes supplied cannot be used and the default locale is selected
      */
-    public void speak(String text, String languageCode, String countryCode, Integer id) throws Exception{
+    public void speak(final String text, final String languageCode, final String countryCode, final Integer id) throws Exception{
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                try {
+                    speak(text, languageCode, countryCode, id);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "The message '" + text + "' could not be synthesized: " + e.getMessage());
+                }
+            }
+        }))
+            return;
+
         setLocale(languageCode, countryCode);
-        HashMap<String, String> params = new HashMap<String, String>();
-        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id.toString());
-        myTTS.speak(text, TextToSpeech.QUEUE_ADD, params);
+        speakNow(text, id);
     }
 
     /**
@@ -493,11 +992,20 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      * @param id integer that identifies the prompt uniquely
      * @throws Exception when the code supplied cannot be used and the default locale is selected
      */
-    public void speak(String text, String languageCode, Integer id) throws Exception{
+    public void speak(final String text, final String languageCode, final Integer id) throws Exception{
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                try {
+                    speak(text, languageCode, id);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "The message '" + text + "' could not be synthesized: " + e.getMessage());
+                }
+            }
+        }))
+            return;
+
         setLocale(languageCode);
-        HashMap<String, String> params = new HashMap<String, String>();
-        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id.toString());
-        myTTS.speak(text, TextToSpeech.QUEUE_ADD, params);
+        speakNow(text, id);
     }
 
     /**
@@ -506,37 +1014,152 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      * @param text string to be synthesized
      * @param id integer that identifies the prompt uniquely
      */
-    public void speak(String text, Integer id){
+    public void speak(final String text, final Integer id){
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                speak(text, id);
+            }
+        }))
+            return;
+
         setLocale();
-        HashMap<String, String> params = new HashMap<String, String>();
-        params.put(TextToSpeech.Engine.KEY_PARAM_UTTERANCE_ID, id.toString());
-        myTTS.speak(text, TextToSpeech.QUEUE_ADD, params);
+        speakNow(text, id);
+    }
+
+    /**
+     * Sends a prompt to the TTS, playing its audio if it is in the cache, or synthesizing it and rendering
+     * its audio in background for the next time otherwise
+     */
+    private synchronized void speakPromptNow(String text, Integer id) {
+        String sound = runtime.getPromptSound(text);
+        if (sound == null) {
+            speakNow(text, id);
+            runtime.renderPrompt(text);
+        } else {
+            runtime.yieldToSpeech();
+            setUtteranceId(id);
+            myTTS.speak(sound, TextToSpeech.QUEUE_ADD, params);
+        }
+    }
+
+    /**
+     * Synthesizes a prompt that is repeated often (e.g. a question or an error message) in the language indicated
+     * (or in the default language of the device if it is not available). Its audio is kept in files by
+     * <code>VoiceRuntimeService</code>, so the next times that it is spoken with the same language and TTS settings
+     * its audio is played without synthesizing it again
+     *
+     * @param languageCode language for the TTS, e.g. EN
+     * @param countryCode country for the TTS, e.g. US
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     * @throws Exception when the codes supplied cannot be used and the default locale is selected
+     */
+    public void speakPrompt(final String text, final String languageCode, final String countryCode, final Integer id) throws Exception{
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                try {
+                    speakPrompt(text, languageCode, countryCode, id);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "The message '" + text + "' could not be synthesized: " + e.getMessage());
+                }
+            }
+        }))
+            return;
+
+        setLocale(languageCode, countryCode);
+        speakPromptNow(text, id);
+    }
+
+    /**
+     * Synthesizes a prompt that is repeated often in the language indicated (or in the default language of the device
+     * if it is not available), playing its audio from the cache when possible
+     *
+     * @param languageCode language for the TTS, e.g. EN
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     * @throws Exception when the code supplied cannot be used and the default locale is selected
+     */
+    public void speakPrompt(final String text, final String languageCode, final Integer id) throws Exception{
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                try {
+                    speakPrompt(text, languageCode, id);
+                } catch (Exception e) {
+                    Log.e(LOGTAG, "The message '" + text + "' could not be synthesized: " + e.getMessage());
+                }
+            }
+        }))
+            return;
+
+        setLocale(languageCode);
+        speakPromptNow(text, id);
+    }
+
+    /**
+     * Synthesizes a prompt that is repeated often using the default language of the device, playing its audio
+     * from the cache when possible
+     *
+     * @param text string to be synthesized
+     * @param id integer that identifies the prompt uniquely
+     */
+    public void speakPrompt(final String text, final Integer id){
+        if (deferUntilConnected(new Runnable() {
+            public void run() {
+                speakPrompt(text, id);
+            }
+        }))
+            return;
+
+        setLocale();
+        speakPromptNow(text, id);
     }
 
     /**
      * Stops the synthesizer if it is speaking
      */
     public void stop(){
-        if(myTTS.isSpeaking())
+        if(myTTS != null && myTTS.isSpeaking()) {
             myTTS.stop();
+            runtime.onTtsStopped();
+        }
     }
 
     /**
-     * Stops the speech synthesis and recognition engines. It is important to call it, as
-     * it releases the native resources used.
+     * Disconnects from the speech synthesis and recognition engines. It is important to call it in
+     * <code>onDestroy</code>. Unless the activity is being recreated because of a configuration change (e.g. the
+     * orientation of the device has changed), the engines are stopped and the service is stopped, which releases
+     * the native resources used. Otherwise the engines are kept for the new instance of the activity.
+     * Before API level 11 configuration changes cannot be told apart, so the engines are stopped only when the
+     * activity is finishing, and the service stops itself when no activity binds to it again after a while.
+     * See here: http://developer.android.com/guide/topics/resources/runtime-changes.html
      */
+    @SuppressLint("NewApi")
     public void shutdown(){
-        myTTS.stop();
-        myTTS.shutdown();
-        myTTS=null;			/*
-		 						This is necessary in order to force the creation of a new TTS instance after shutdown.
-		 						It is useful for handling runtime changes such as a change in the orientation of the device,
-		 						as it is necessary to create a new instance with the new context.
-		 						See here: http://developer.android.com/guide/topics/resources/runtime-changes.html
-							*/
-        myASR.stopListening();
-        myASR.destroy();
-        myASR=null;
+        pending.clear();
+        continuous = false;
+        handler.removeCallbacks(restart);
+        boolean release = Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB && !ctx.isChangingConfigurations();
+        boolean finishing = release || ctx.isFinishing();
+
+        if (runtime != null) {
+            if (finishing) {
+                myTTS.stop();
+                runtime.onTtsStopped();
+                if (myASR != null)
+                    myASR.cancel();
+            }
+            runtime.detach(this);
+        }
+        if (bound) {
+            ctx.unbindService(connection);
+            bound = false;
+        }
+        if (release)
+            ctx.stopService(new Intent(ctx, VoiceRuntimeService.class));
+
+        runtime = null;
+        myTTS = null;
+        myASR = null;
     }
 
     /*
@@ -547,6 +1170,7 @@ public abstract class VoiceActivity extends Activity implements RecognitionListe
      */
     @Override
     public void onInit(int status) {
+        localeResolved = false; //The availability of the languages is checked again with the new engine
         if(status != TextToSpeech.ERROR){
             setLocale();
         }